@@ -4,7 +4,9 @@ include $(CLEAR_VARS)
 LOCAL_MODULE_TAGS := optional
 
 LOCAL_SRC_FILES := \
-        $(call all-java-files-under, src)
+        $(call all-java-files-under, src) \
+        src/com/android/nfc/INfcTagExtras.aidl \
+        src/com/android/nfc/ITransceiveCallback.aidl
 
 LOCAL_PACKAGE_NAME := Nfc
 LOCAL_CERTIFICATE := platform
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.os.Process;
+import android.os.SystemClock;
+import android.os.SystemProperties;
+import android.util.Log;
+import android.util.SparseArray;
+
+/**
+ * Optional per-UID rate limit on asynchronous tag requests.
+ *
+ * <p>Fair use of the reader comes from {@link TagCommandQueue}; this only
+ * bounds how fast a client may queue work that can be refused without a
+ * spurious I/O error. Synchronous calls are never charged here.
+ *
+ * <p>The limit is off unless {@code nfc.client.rate} is set above 0. Each
+ * UID then has a token bucket that refills at that many operations per
+ * second and holds up to {@code nfc.client.burst}. An operation that finds
+ * the bucket empty is refused and counted as throttled. The service's own
+ * UID is not limited.
+ */
+final class ClientThrottle {
+    private static final String TAG = "ClientThrottle";
+
+    static final int DEFAULT_RATE = 0;      // operations per second; 0 is off
+    static final int DEFAULT_BURST = 20;
+
+    // bucket levels are kept in thousandths of a token
+    private static final long SCALE = 1000;
+
+    private final int mRate;
+    private final int mBurst;
+
+    // guarded by this
+    private final SparseArray<Client> mClients = new SparseArray<Client>();
+
+    private static final class Client {
+        long mTokens;
+        long mLastRefill;
+        boolean mThrottling;
+
+        // statistics
+        int mOps;
+        int mThrottled;
+        int mRejected;
+    }
+
+    ClientThrottle() {
+        this(SystemProperties.getInt("nfc.client.rate", DEFAULT_RATE),
+                SystemProperties.getInt("nfc.client.burst", DEFAULT_BURST));
+    }
+
+    ClientThrottle(int rate, int burst) {
+        mRate = Math.max(0, rate);
+        mBurst = Math.max(1, burst);
+    }
+
+    private Client client(int uid) {
+        Client c = mClients.get(uid);
+        if (c == null) {
+            c = new Client();
+            c.mTokens = mBurst * SCALE;
+            c.mLastRefill = SystemClock.elapsedRealtime();
+            mClients.put(uid, c);
+        }
+        return c;
+    }
+
+    /**
+     * Takes cost tokens from uid's bucket.
+     *
+     * @return false if uid is over its rate; nothing is taken then
+     */
+    synchronized boolean tryAcquire(int uid, int cost) {
+        Client c = client(uid);
+        if ((mRate == 0) || (uid == Process.myUid())) {
+            c.mOps++;
+            return true;
+        }
+
+        long now = SystemClock.elapsedRealtime();
+        // rate tokens per 1000 ms, in thousandths: rate per ms
+        c.mTokens = Math.min(mBurst * SCALE, c.mTokens + (now - c.mLastRefill) * mRate);
+        c.mLastRefill = now;
+
+        // a batch larger than the burst is let through on a full bucket
+        long need = Math.min(cost, mBurst) * SCALE;
+        if (c.mTokens < need) {
+            c.mThrottled++;
+            if (!c.mThrottling) {
+                // once per throttled run, not per refused call
+                c.mThrottling = true;
+                Log.w(TAG, "Throttling uid " + uid);
+                EventLogTags.writeNfcClientThrottled(uid, c.mThrottled);
+            }
+            return false;
+        }
+        c.mTokens -= need;
+        c.mThrottling = false;
+        c.mOps += cost;
+        return true;
+    }
+
+    /** Counts a request of uid refused because its queue was full. */
+    synchronized void noteRejected(int uid) {
+        client(uid).mRejected++;
+    }
+
+    synchronized void dump(DumpBuilder d) {
+        d.put("rate", mRate);
+        d.put("burst", mBurst);
+        // uid=ops/throttled/rejected
+        for (int i = 0; i < mClients.size(); i++) {
+            Client c = mClients.valueAt(i);
+            d.put("uid_" + mClients.keyAt(i), c.mOps + "/" + c.mThrottled + "/" + c.mRejected);
+        }
+    }
+}
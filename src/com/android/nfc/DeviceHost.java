@@ -57,6 +57,12 @@ public interface DeviceHost {
     }
 
     public interface TagEndpoint {
+        /**
+         * Handle bits from this position up identify the discovery; a new
+         * endpoint never reuses the generation of an earlier one.
+         */
+        int HANDLE_GENERATION_SHIFT = 4;
+
         boolean connect(int technology);
         boolean reconnect();
         boolean disconnect();
@@ -71,12 +77,72 @@ public interface DeviceHost {
         byte[] getUid();
         int getHandle();
 
+        /** Latency trace opened when the tag was polled, or null. */
+        TapTracer.Trace getTapTrace();
+
         byte[] transceive(byte[] data, boolean raw, int[] returnCode);
 
+        /**
+         * Sends several commands back to back while holding the endpoint once.
+         * The returned array has one entry per command that was sent; an entry
+         * is null if that exchange failed. With stopOnError set, the batch
+         * ends at the first failed exchange, so the array may be shorter than
+         * data.
+         */
+        byte[][] transceive(byte[][] data, boolean raw, boolean stopOnError, int[] returnCode);
+
+        /**
+         * FeliCa Read Without Encryption of (serviceCodes[i], blocks[i]) pairs.
+         * The endpoint packs the pairs into as few commands as the card
+         * allows. Returns 16 bytes per block in request order, with a null
+         * entry for each block the card rejected. Returns null if the tag is
+         * not FeliCa or stopped answering.
+         */
+        byte[][] felicaRead(int[] serviceCodes, int[] blocks);
+
+        /**
+         * FeliCa system codes on the card. Returns null if the tag is not
+         * FeliCa or the request failed. Results are cached per IDm + PMm.
+         */
+        int[] felicaRequestSystemCodes();
+
+        /**
+         * Buffers a FeliCa Write Without Encryption of one 16-byte block.
+         * Pending writes go to the card as multi-block commands, either at
+         * felicaCommitWrites() or before the next read or transceive on this
+         * endpoint. Each command is atomic on the card; a flush spanning
+         * several commands is not. Returns false if the tag is not FeliCa
+         * or the arguments are invalid.
+         */
+        boolean felicaWriteBuffered(int serviceCode, int block, byte[] data);
+
+        /**
+         * Sends all buffered FeliCa writes. Returns false if any command
+         * failed; that write and all later ones are then dropped.
+         */
+        boolean felicaCommitWrites();
+
+        /**
+         * Turns FeliCa read-ahead for sequential single-block reads on or off
+         * for this endpoint. It is off by default. Returns false if the tag is
+         * not FeliCa.
+         */
+        boolean setFelicaReadAhead(boolean on);
+
+        /**
+         * FeliCa area and service codes of one system, in card order. An
+         * area is (end code << 16) | area code. Returns null if the tag is
+         * not FeliCa or the search failed. Results are cached per IDm + PMm.
+         */
+        int[] felicaSearchServiceCodes(int systemCode);
+
         boolean checkNdef(int[] out);
         byte[] readNdef();
         boolean writeNdef(byte[] data);
         NdefMessage[] findAndReadNdef();
+
+        /** Size in bytes of the NDEF message last read by findAndReadNdef(), or 0. */
+        int getNdefLength();
         boolean formatNdef(byte[] key);
         boolean isNdefFormatable();
         boolean makeReadOnly();
@@ -197,5 +263,6 @@ public interface DeviceHost {
 
     int getMaxTransceiveLength(int technology);
 
-    String dump();
+    /** Adds the host's sections (reader, poll, commands, ...) to a dump. */
+    void dump(DumpBuilder dump);
 }
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import com.android.nfc.DeviceHost.TagEndpoint;
+
+import android.nfc.NdefMessage;
+import android.nfc.Tag;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Takes a discovered tag through to the activity that handles it, off the
+ * service handler.
+ *
+ * <p>The work is split into stages, each on its own single thread:
+ * <ul>
+ * <li>{@link #STAGE_IDENTIFY} and {@link #STAGE_NDEF_READ} talk to the tag,
+ * on the {@link TagCommandQueue} thread.
+ * <li>{@link #STAGE_RESOLVE} matches intents and filters on the resolve
+ * thread.
+ * <li>{@link #STAGE_LAUNCH} starts the activity on the launch thread.
+ * </ul>
+ * Once a tag's I/O is done, the I/O thread can serve the next tag while the
+ * previous one is still being resolved or launched.
+ */
+final class DiscoveryPipeline {
+    private static final String TAG = "DiscoveryPipeline";
+
+    static final int STAGE_IDENTIFY = 0;
+    static final int STAGE_NDEF_READ = 1;
+    static final int STAGE_RESOLVE = 2;
+    static final int STAGE_LAUNCH = 3;
+    private static final String[] STAGE_NAMES = { "identify", "ndef", "resolve", "launch" };
+
+    private final NfcService mService;
+    private final TagCommandQueue mTagIo;
+    private final ExecutorService mResolve = newStageExecutor("NfcResolve");
+    private final ExecutorService mLaunch = newStageExecutor("NfcLaunch");
+
+    // per-stage timing; guarded by this
+    private final int[] mCount = new int[STAGE_NAMES.length];
+    private final long[] mTotalMs = new long[STAGE_NAMES.length];
+    private final long[] mMaxMs = new long[STAGE_NAMES.length];
+
+    // dispatch outcomes; guarded by this
+    private int mDelivered;
+    private int mUndelivered;
+    private int mLost;
+
+    DiscoveryPipeline(NfcService service, TagCommandQueue tagIo) {
+        mService = service;
+        mTagIo = tagIo;
+    }
+
+    private static ExecutorService newStageExecutor(final String name) {
+        return Executors.newSingleThreadExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                return new Thread(r, name);
+            }
+        });
+    }
+
+    /**
+     * Executor for {@link NfcDispatcher} activity launches; each launch is
+     * timed as {@link #STAGE_LAUNCH}.
+     */
+    Executor getLaunchExecutor() {
+        return new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                mLaunch.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        long start = SystemClock.elapsedRealtime();
+                        command.run();
+                        record(STAGE_LAUNCH, start);
+                    }
+                });
+            }
+        };
+    }
+
+    /** Starts the pipeline for a newly discovered tag. Returns immediately. */
+    void submit(final TagEndpoint tag) {
+        mTagIo.execute(new Runnable() {
+            @Override
+            public void run() {
+                readTag(tag);
+            }
+        });
+    }
+
+    private void readTag(TagEndpoint tagEndpoint) {
+        final TapTracer.Trace trace = tagEndpoint.getTapTrace();
+        long start = SystemClock.elapsedRealtime();
+        long span = TapTracer.now();
+        boolean present = tagEndpoint.reconnect();
+        record(STAGE_IDENTIFY, start);
+        if (trace != null) trace.end("identify", span);
+        if (!present) {
+            synchronized (this) {
+                mLost++;
+            }
+            tagEndpoint.disconnect();
+            mService.playSound(NfcService.SOUND_ERROR, trace);
+            return;
+        }
+
+        start = SystemClock.elapsedRealtime();
+        span = TapTracer.now();
+        final NdefMessage[] msgs = tagEndpoint.findAndReadNdef();
+        if (msgs != null) {
+            EventLogTags.writeNfcNdefRead(tagEndpoint.getNdefLength(),
+                    msgs[0].getRecords().length, (int) (SystemClock.elapsedRealtime() - start));
+        } else {
+            EventLogTags.writeNfcNdefRead(0, 0, (int) (SystemClock.elapsedRealtime() - start));
+        }
+        tagEndpoint.startPresenceChecking();
+        final Tag tag = new Tag(tagEndpoint.getUid(), tagEndpoint.getTechList(),
+                tagEndpoint.getTechExtras(), tagEndpoint.getHandle(), mService.mNfcTagService);
+        mService.registerTagObject(tagEndpoint);
+        record(STAGE_NDEF_READ, start);
+        if (trace != null) trace.end("ndef", span);
+
+        final int handle = tagEndpoint.getHandle();
+        mResolve.execute(new Runnable() {
+            @Override
+            public void run() {
+                resolve(tag, handle, msgs, trace);
+            }
+        });
+    }
+
+    private void resolve(Tag tag, int handle, NdefMessage[] msgs, final TapTracer.Trace trace) {
+        long start = SystemClock.elapsedRealtime();
+        TapTracer.setCurrent(trace);
+        boolean delivered;
+        try {
+            delivered = mService.dispatchTag(tag, msgs);
+        } finally {
+            TapTracer.setCurrent(null);
+        }
+        record(STAGE_RESOLVE, start);
+        EventLogTags.writeNfcTagDispatched(delivered ? 1 : 0,
+                (trace != null) ? (int) trace.elapsedMillis() : -1);
+        synchronized (this) {
+            if (delivered) {
+                mDelivered++;
+            } else {
+                mUndelivered++;
+            }
+        }
+        if (!delivered) {
+            mService.unregisterObject(handle);
+            mService.playSound(NfcService.SOUND_ERROR, trace);
+        } else {
+            mService.playSound(NfcService.SOUND_END, trace);
+        }
+        if (trace != null) {
+            // the launches queued by this dispatch run first
+            mLaunch.execute(new Runnable() {
+                @Override
+                public void run() {
+                    trace.finish();
+                }
+            });
+        }
+    }
+
+    private synchronized void record(int stage, long start) {
+        long ms = SystemClock.elapsedRealtime() - start;
+        mCount[stage]++;
+        mTotalMs[stage] += ms;
+        if (ms > mMaxMs[stage]) {
+            mMaxMs[stage] = ms;
+        }
+        if (NfcService.DBG) Log.d(TAG, STAGE_NAMES[stage] + " " + ms + "ms");
+    }
+
+    synchronized void dump(DumpBuilder d) {
+        if (d.section("pipeline")) {
+            // stage=count/avg ms/max ms
+            for (int i = 0; i < STAGE_NAMES.length; i++) {
+                long avg = (mCount[i] > 0) ? mTotalMs[i] / mCount[i] : 0;
+                d.put(STAGE_NAMES[i], mCount[i] + "/" + avg + "/" + mMaxMs[i]);
+            }
+        }
+        if (d.section("dispatch")) {
+            d.put("delivered", mDelivered);
+            d.put("undelivered", mUndelivered);
+            d.put("lost", mLost);
+        }
+    }
+}
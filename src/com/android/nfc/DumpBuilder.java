@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import java.io.PrintWriter;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Sectioned key/value output for {@code dumpsys nfc}.
+ *
+ * <p>Arguments name the sections to print; with none, all are printed.
+ * {@code -c} or {@code --compact} prints each section on one line as
+ * {@code section key=value ...} for scripts; otherwise each key goes on its
+ * own line under a {@code [section]} header. Free-form lines
+ * ({@link #line}) only appear in the full format.
+ */
+public final class DumpBuilder {
+    private final PrintWriter mPw;
+    private final boolean mCompact;
+    private final Set<String> mSelected = new HashSet<String>();
+
+    private boolean mOpen;
+    private StringBuilder mLine;
+
+    public DumpBuilder(PrintWriter pw, String[] args) {
+        mPw = pw;
+        boolean compact = false;
+        if (args != null) {
+            for (String arg : args) {
+                if ("-c".equals(arg) || "--compact".equals(arg)) {
+                    compact = true;
+                } else if (!arg.startsWith("-")) {
+                    mSelected.add(arg);
+                }
+            }
+        }
+        mCompact = compact;
+    }
+
+    public boolean isCompact() {
+        return mCompact;
+    }
+
+    /**
+     * Ends the current section and starts the next one.
+     *
+     * @return whether name was selected; if not, puts are dropped until the
+     *         next section
+     */
+    public boolean section(String name) {
+        finish();
+        mOpen = mSelected.isEmpty() || mSelected.contains(name);
+        if (mOpen) {
+            if (mCompact) {
+                mLine = new StringBuilder(name);
+            } else {
+                mPw.println("[" + name + "]");
+            }
+        }
+        return mOpen;
+    }
+
+    public DumpBuilder put(String key, Object value) {
+        if (mOpen) {
+            if (mCompact) {
+                String v = String.valueOf(value).replace(' ', '_');
+                mLine.append(' ').append(key).append('=').append(v);
+            } else {
+                mPw.println("  " + key + "=" + value);
+            }
+        }
+        return this;
+    }
+
+    /** Free-form line, full format only. */
+    public void line(String text) {
+        if (mOpen && !mCompact) {
+            mPw.println("  " + text);
+        }
+    }
+
+    /** Ends the current section. */
+    public void finish() {
+        if (mOpen && mCompact) {
+            mPw.println(mLine);
+        }
+        mOpen = false;
+        mLine = null;
+    }
+
+    /** Lowercase hex of b, for ids and codes. */
+    public static String hex(byte[] b) {
+        if (b == null) {
+            return "-";
+        }
+        StringBuilder sb = new StringBuilder(2 * b.length);
+        for (byte x : b) {
+            sb.append(String.format("%02x", x & 0xff));
+        }
+        return sb.toString();
+    }
+}
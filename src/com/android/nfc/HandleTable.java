@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.util.Log;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maps the int handles handed out to applications to the objects behind
+ * them.
+ *
+ * <p>The table is split into stripes, each a {@link SparseArray} with its
+ * own lock, so lookups neither box the key nor contend with each other or
+ * with the service lock.
+ *
+ * <p>The bits of a handle above {@code generationShift} identify the
+ * discovery it came from. A lookup that misses with a generation older than
+ * the newest one registered is reported as stale rather than unknown.
+ */
+final class HandleTable {
+    private static final String TAG = "HandleTable";
+
+    private static final int STRIPE_BITS = 3;
+    private static final int STRIPES = 1 << STRIPE_BITS;
+
+    private final int mGenerationShift;
+    private final Object[] mLocks = new Object[STRIPES];
+    private final SparseArray<Object>[] mStripes;
+
+    // only used to tell stale handles apart in the log, so racing puts may
+    // leave it slightly behind
+    private volatile int mNewestGeneration;
+
+    @SuppressWarnings("unchecked")
+    HandleTable(int generationShift) {
+        mGenerationShift = generationShift;
+        mStripes = new SparseArray[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            mLocks[i] = new Object();
+            mStripes[i] = new SparseArray<Object>();
+        }
+    }
+
+    private static int stripe(int handle) {
+        // Tag handles are (generation << shift) | technology, so the low
+        // bits of consecutive discoveries are the same. A multiplicative
+        // hash moves every bit of the handle into the top bits used here.
+        return (handle * 0x9e3779b9) >>> (32 - STRIPE_BITS);
+    }
+
+    void put(int handle, Object object) {
+        int s = stripe(handle);
+        synchronized (mLocks[s]) {
+            mStripes[s].put(handle, object);
+        }
+        int generation = handle >>> mGenerationShift;
+        if (generation > mNewestGeneration) {
+            mNewestGeneration = generation;
+        }
+    }
+
+    /**
+     * @return the object registered under handle if it is a type, null
+     *         otherwise
+     */
+    <T> T get(int handle, Class<T> type) {
+        Object object;
+        int s = stripe(handle);
+        synchronized (mLocks[s]) {
+            object = mStripes[s].get(handle);
+        }
+        if (object == null) {
+            if ((handle >>> mGenerationShift) < mNewestGeneration) {
+                Log.w(TAG, "Stale handle " + handle);
+            } else {
+                Log.w(TAG, "Handle not found");
+            }
+            return null;
+        }
+        if (!type.isInstance(object)) {
+            Log.w(TAG, "Handle " + handle + " is not a " + type.getSimpleName());
+            return null;
+        }
+        return type.cast(object);
+    }
+
+    Object remove(int handle) {
+        int s = stripe(handle);
+        synchronized (mLocks[s]) {
+            Object object = mStripes[s].get(handle);
+            mStripes[s].delete(handle);
+            return object;
+        }
+    }
+
+    /** Number of live handles and the handles themselves. */
+    void dump(DumpBuilder d) {
+        StringBuilder handles = new StringBuilder();
+        int count = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            synchronized (mLocks[s]) {
+                SparseArray<Object> stripe = mStripes[s];
+                for (int i = 0; i < stripe.size(); i++) {
+                    if (count++ > 0) {
+                        handles.append(',');
+                    }
+                    handles.append(Integer.toHexString(stripe.keyAt(i)));
+                }
+            }
+        }
+        d.put("live", count);
+        d.put("handles", (count > 0) ? handles : "-");
+        d.put("newest_generation", mNewestGeneration);
+    }
+
+    /** Empties the table and returns what was in it. */
+    List<Object> clear() {
+        List<Object> removed = new ArrayList<Object>();
+        for (int s = 0; s < STRIPES; s++) {
+            synchronized (mLocks[s]) {
+                SparseArray<Object> stripe = mStripes[s];
+                for (int i = 0; i < stripe.size(); i++) {
+                    removed.add(stripe.valueAt(i));
+                }
+                stripe.clear();
+            }
+        }
+        return removed;
+    }
+}
@@ -42,6 +42,7 @@ import java.nio.charset.Charsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * Dispatch of NFC events to start activities
@@ -53,6 +54,7 @@ public class NfcDispatcher {
     private final Context mContext;
     private final IActivityManager mIActivityManager;
     private final RegisteredComponentCache mTechListFilters;
+    private final Executor mLaunchExecutor;
 
     private PackageManager mPackageManager;
 
@@ -61,8 +63,13 @@ public class NfcDispatcher {
     private IntentFilter[] mOverrideFilters;
     private String[][] mOverrideTechLists;
 
-    public NfcDispatcher(Context context) {
+    /**
+     * @param launchExecutor runs the activity starts, so that resolving the
+     *        next tag does not wait on them
+     */
+    public NfcDispatcher(Context context, Executor launchExecutor) {
         mContext = context;
+        mLaunchExecutor = launchExecutor;
         mIActivityManager = ActivityManagerNative.getDefault();
         mTechListFilters = new RegisteredComponentCache(mContext,
                 NfcAdapter.ACTION_TECH_DISCOVERED, NfcAdapter.ACTION_TECH_DISCOVERED);
@@ -97,8 +104,11 @@ public class NfcDispatcher {
         if (overrideIntent != null) {
             if (DBG) Log.d(TAG, "Attempting to dispatch tag with override");
             try {
-                if (dispatchTagInternal(tag, msgs, overrideIntent, overrideFilters,
-                        overrideTechLists)) {
+                long start = TapTracer.now();
+                boolean dispatched = dispatchTagInternal(tag, msgs, overrideIntent,
+                        overrideFilters, overrideTechLists);
+                endSpan("dispatch", start);
+                if (dispatched) {
                     if (DBG) Log.d(TAG, "Dispatched to override");
                     return true;
                 }
@@ -115,7 +125,10 @@ public class NfcDispatcher {
 
         // Try normal dispatch.
         try {
-            return dispatchTagInternal(tag, msgs, null, null, null);
+            long start = TapTracer.now();
+            boolean dispatched = dispatchTagInternal(tag, msgs, null, null, null);
+            endSpan("dispatch", start);
+            return dispatched;
         } catch (CanceledException e) {
             Log.e(TAG, "CanceledException unexpected here", e);
             return false;
@@ -135,7 +148,7 @@ public class NfcDispatcher {
      *  which launches the passed-in intent as soon as it's created.
      */
     private boolean startRootActivity(Intent intent) {
-        Intent rootIntent = new Intent(mContext, NfcRootActivity.class);
+        final Intent rootIntent = new Intent(mContext, NfcRootActivity.class);
         rootIntent.putExtra(NfcRootActivity.EXTRA_LAUNCH_INTENT, intent);
         rootIntent.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_CLEAR_TASK);
         // Ideally we'd have used startActivityForResult() to determine whether the
@@ -143,9 +156,19 @@ public class NfcDispatcher {
         // is not available on Context. Instead, we query the PackageManager beforehand
         // to determine if there is an Activity to handle this intent, and base the
         // result of off that.
+        long start = TapTracer.now();
         List<ResolveInfo> activities = mPackageManager.queryIntentActivities(intent, 0);
+        endSpan("resolve", start);
         // Try to start the activity regardless of the result.
-        mContext.startActivity(rootIntent);
+        final TapTracer.Trace trace = TapTracer.current();
+        mLaunchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                long start = TapTracer.now();
+                mContext.startActivity(rootIntent);
+                if (trace != null) trace.end("launch", start);
+            }
+        });
         if (activities.size() > 0) {
             return true;
         } else {
@@ -327,6 +350,14 @@ public class NfcDispatcher {
         }
     }
 
+    /** Adds a span to the tap being dispatched on this thread, if any. */
+    private static void endSpan(String name, long start) {
+        TapTracer.Trace trace = TapTracer.current();
+        if (trace != null) {
+            trace.end(name, start);
+        }
+    }
+
     /**
      * Tells the ActivityManager to resume allowing app switches.
      *
@@ -37,8 +37,6 @@ import android.content.SharedPreferences;
 import android.content.pm.ActivityInfo;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
-import android.media.AudioManager;
-import android.media.SoundPool;
 import android.net.Uri;
 import android.nfc.ErrorCodes;
 import android.nfc.FormatException;
@@ -63,14 +61,13 @@ import android.os.PowerManager;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.provider.Settings;
 import android.util.Log;
 
 import java.io.FileDescriptor;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.util.Arrays;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.ExecutionException;
@@ -82,6 +79,7 @@ public class NfcService extends Application implements DeviceHostListener {
     static final String TAG = "NfcService";
 
     public static final String SERVICE_NAME = "nfc";
+    public static final String TAG_EXTRAS_SERVICE_NAME = "nfc_tag_extras";
 
     /** Regular NFC permission */
     private static final String NFC_PERM = android.Manifest.permission.NFC;
@@ -100,7 +98,6 @@ public class NfcService extends Application implements DeviceHostListener {
     static final String PREF_FIRST_BEAM = "first_beam";
     static final String PREF_FIRST_BOOT = "first_boot";
 
-    static final int MSG_NDEF_TAG = 0;
     static final int MSG_CARD_EMULATION = 1;
     static final int MSG_LLCP_LINK_ACTIVATION = 2;
     static final int MSG_LLCP_LINK_DEACTIVATED = 3;
@@ -158,35 +155,50 @@ public class NfcService extends Application implements DeviceHostListener {
         "com.android.nfc_extras.extra.MIFARE_BLOCK";
 
 
+    // handle -> object; has its own locking
+    final HandleTable mObjectMap = new HandleTable(TagEndpoint.HANDLE_GENERATION_SHIFT);
+
     // fields below are used in multiple threads and protected by synchronized(this)
-    final HashMap<Integer, Object> mObjectMap = new HashMap<Integer, Object>();
     HashSet<String> mSePackages = new HashSet<String>();
     int mScreenState;
-    boolean mIsNdefPushEnabled = false;
     boolean mNfceeRouteEnabled;  // current Device Host state of NFC-EE routing
     boolean mNfcPollingEnabled;  // current Device Host state of NFC-C polling
 
-    // mState is protected by this, however it is only modified in onCreate()
-    // and the default AsyncTask thread so it is read unprotected from that
-    // thread
-    int mState;  // one of NfcAdapter.STATE_ON, STATE_TURNING_ON, etc
+    /**
+     * Adapter state as seen by Binder callers. Never modified; a new one is
+     * published on each change, so readers need no lock.
+     */
+    static final class AdapterState {
+        final int state;  // one of NfcAdapter.STATE_ON, STATE_TURNING_ON, etc
+        final boolean ndefPushEnabled;
+
+        AdapterState(int state, boolean ndefPushEnabled) {
+            this.state = state;
+            this.ndefPushEnabled = ndefPushEnabled;
+        }
+    }
+
+    // only replaced in onCreate() and on the default AsyncTask thread
+    volatile AdapterState mAdapterState;
 
     // fields below are final after onCreate()
     Context mContext;
     private DeviceHost mDeviceHost;
     private SharedPreferences mPrefs;
     private SharedPreferences.Editor mPrefsEditor;
-    int mStartSound;
-    int mEndSound;
-    int mErrorSound;
-    SoundPool mSoundPool; // playback synchronized on this
+    private final SoundPlayer mSoundPlayer = new SoundPlayer();
     TagService mNfcTagService;
+    TagExtrasService mTagExtrasService;
     NfcAdapterService mNfcAdapter;
     NfcAdapterExtrasService mExtrasService;
     boolean mIsAirplaneSensitive;
     boolean mIsAirplaneToggleable;
 
     private NfcDispatcher mNfcDispatcher;
+    private DiscoveryPipeline mDiscoveryPipeline;
+    private final TagCommandQueue mTagCommandQueue = new TagCommandQueue();
+    private final ClientThrottle mClientThrottle = new ClientThrottle();
+    private volatile long mEnableMillis = -1;   // duration of the last enable
     private KeyguardManager mKeyguard;
 
     private static NfcService sService;
@@ -206,7 +218,9 @@ public class NfcService extends Application implements DeviceHostListener {
     @Override
     public void onRemoteEndpointDiscovered(TagEndpoint tag) {
         Log.d(TAG, "onRemoteEndpointDiscovered");
-        sendMessage(NfcService.MSG_NDEF_TAG, tag);
+        // beep now, not once the tag I/O queue gets to the tag
+        playSound(SOUND_START, tag.getTapTrace());
+        mDiscoveryPipeline.submit(tag);
     }
 
     /**
@@ -280,6 +294,7 @@ public class NfcService extends Application implements DeviceHostListener {
         super.onCreate();
 
         mNfcTagService = new TagService();
+        mTagExtrasService = new TagExtrasService();
         mNfcAdapter = new NfcAdapterService();
         mExtrasService = new NfcAdapterExtrasService();
 
@@ -290,17 +305,19 @@ public class NfcService extends Application implements DeviceHostListener {
         mContext = this;
         mDeviceHost = new NativeNfcManager(this, this);
 
-        mNfcDispatcher = new NfcDispatcher(this);
+        mDiscoveryPipeline = new DiscoveryPipeline(this, mTagCommandQueue);
+        mNfcDispatcher = new NfcDispatcher(this, mDiscoveryPipeline.getLaunchExecutor());
 
         mPrefs = getSharedPreferences(PREF, Context.MODE_PRIVATE);
         mPrefsEditor = mPrefs.edit();
 
-        mState = NfcAdapter.STATE_OFF;
+        mAdapterState = new AdapterState(NfcAdapter.STATE_OFF, false);
 
         mKeyguard = (KeyguardManager) getSystemService(Context.KEYGUARD_SERVICE);
         mScreenState = checkScreenState();
 
         ServiceManager.addService(SERVICE_NAME, mNfcAdapter);
+        ServiceManager.addService(TAG_EXTRAS_SERVICE_NAME, mTagExtrasService);
 
         IntentFilter filter = new IntentFilter(NativeNfcManager.INTERNAL_TARGET_DESELECTED_ACTION);
         filter.addAction(Intent.ACTION_SCREEN_OFF);
@@ -319,26 +336,6 @@ public class NfcService extends Application implements DeviceHostListener {
         new EnableDisableTask().execute(TASK_BOOT);  // do blocking boot tasks
     }
 
-    void initSoundPool() {
-        synchronized(this) {
-            if (mSoundPool == null) {
-                mSoundPool = new SoundPool(1, AudioManager.STREAM_NOTIFICATION, 0);
-                mStartSound = mSoundPool.load(this, R.raw.start, 1);
-                mEndSound = mSoundPool.load(this, R.raw.end, 1);
-                mErrorSound = mSoundPool.load(this, R.raw.error, 1);
-            }
-        }
-    }
-
-    void releaseSoundPool() {
-        synchronized(this) {
-            if (mSoundPool != null) {
-                mSoundPool.release();
-                mSoundPool = null;
-            }
-        }
-    }
-
 //    void registerForAirplaneMode(IntentFilter filter) {
 //        final ContentResolver resolver = mContext.getContentResolver();
 //        final String airplaneModeRadios = Settings.System.getString(resolver,
@@ -364,13 +361,13 @@ public class NfcService extends Application implements DeviceHostListener {
      * Manages tasks that involve turning on/off the NFC controller.
      *
      * <p>All work that might turn the NFC adapter on or off must be done
-     * through this task, to keep the handling of mState simple.
-     * In other words, mState is only modified in these tasks (and we
+     * through this task, to keep the handling of mAdapterState simple.
+     * In other words, mAdapterState is only modified in these tasks (and we
      * don't need a lock to read it in these tasks).
      *
      * <p>These tasks are all done on the same AsyncTask background
      * thread, so they are serialized. Each task may temporarily transition
-     * mState to STATE_TURNING_OFF or STATE_TURNING_ON, but must exit in
+     * mAdapterState to STATE_TURNING_OFF or STATE_TURNING_ON, but must exit in
      * either STATE_ON or STATE_OFF. This way each task can be guaranteed
      * of starting in either STATE_OFF or STATE_ON, without needing to hold
      * NfcService.this for the entire task.
@@ -392,12 +389,13 @@ public class NfcService extends Application implements DeviceHostListener {
     class EnableDisableTask extends AsyncTask<Integer, Void, Void> {
         @Override
         protected Void doInBackground(Integer... params) {
-            // Sanity check mState
-            switch (mState) {
+            // Sanity check mAdapterState
+            int state = mAdapterState.state;
+            switch (state) {
                 case NfcAdapter.STATE_TURNING_OFF:
                 case NfcAdapter.STATE_TURNING_ON:
                     Log.e(TAG, "Processing EnableDisable task " + params[0] + " from bad state " +
-                            mState);
+                            state);
                     return null;
             }
 
@@ -426,28 +424,30 @@ public class NfcService extends Application implements DeviceHostListener {
          * Does not toggle preferences.
          */
         boolean enableInternal() {
-            if (mState == NfcAdapter.STATE_ON) {
+            if (mAdapterState.state == NfcAdapter.STATE_ON) {
                 return true;
             }
             Log.i(TAG, "Enabling NFC");
+            long start = SystemClock.elapsedRealtime();
             updateState(NfcAdapter.STATE_TURNING_ON);
 
+            // decoded on the sound thread while the reader is brought up
+            mSoundPlayer.load(NfcService.this);
+
             if (!mDeviceHost.initialize()) {
                 Log.w(TAG, "Error enabling NFC");
                 updateState(NfcAdapter.STATE_OFF);
+                mSoundPlayer.release();
                 return false;
             }
 
-            synchronized(NfcService.this) {
-                mObjectMap.clear();
-
-                updateState(NfcAdapter.STATE_ON);
-            }
-
-            initSoundPool();
+            mObjectMap.clear();
+            updateState(NfcAdapter.STATE_ON);
 
             /* Start polling loop */
             applyRouting(true);
+            mEnableMillis = SystemClock.elapsedRealtime() - start;
+            Log.i(TAG, "NFC enabled in " + mEnableMillis + "ms");
             return true;
         }
 
@@ -456,7 +456,7 @@ public class NfcService extends Application implements DeviceHostListener {
          * Does not toggle preferences.
          */
         boolean disableInternal() {
-            if (mState == NfcAdapter.STATE_OFF) {
+            if (mAdapterState.state == NfcAdapter.STATE_OFF) {
                 return true;
             }
             Log.i(TAG, "Disabling NFC");
@@ -485,7 +485,7 @@ public class NfcService extends Application implements DeviceHostListener {
 
             updateState(NfcAdapter.STATE_OFF);
 
-            releaseSoundPool();
+            mSoundPlayer.release();
 
             return result;
         }
@@ -494,13 +494,14 @@ public class NfcService extends Application implements DeviceHostListener {
 
         void updateState(int newState) {
             synchronized (this) {
-                if (newState == mState) {
+                AdapterState old = mAdapterState;
+                if (newState == old.state) {
                     return;
                 }
-                mState = newState;
+                mAdapterState = new AdapterState(newState, old.ndefPushEnabled);
                 Intent intent = new Intent(NfcAdapter.ACTION_ADAPTER_STATE_CHANGED);
                 intent.setFlags(Intent.FLAG_RECEIVER_REGISTERED_ONLY_BEFORE_BOOT);
-                intent.putExtra(NfcAdapter.EXTRA_ADAPTER_STATE, mState);
+                intent.putExtra(NfcAdapter.EXTRA_ADAPTER_STATE, newState);
                 mContext.sendBroadcast(intent);
             }
         }
@@ -513,24 +514,22 @@ public class NfcService extends Application implements DeviceHostListener {
         }
     }
 
+    /** Plays sound for the tap traced by the calling thread, if any. */
     public void playSound(int sound) {
-        synchronized (this) {
-            if (mSoundPool == null) {
-                Log.w(TAG, "Not playing sound when NFC is disabled");
-                return;
-            }
-            switch (sound) {
-                case SOUND_START:
-                    mSoundPool.play(mStartSound, 1.0f, 1.0f, 0, 0, 1.0f);
-                    break;
-                case SOUND_END:
-                    mSoundPool.play(mEndSound, 1.0f, 1.0f, 0, 0, 1.0f);
-                    break;
-                case SOUND_ERROR:
-                    mSoundPool.play(mErrorSound, 1.0f, 1.0f, 0, 0, 1.0f);
-                    break;
-            }
+        playSound(sound, TapTracer.current());
+    }
+
+    /**
+     * Plays sound without waiting for it.
+     *
+     * @param trace the tap the sound is for, or null
+     */
+    public void playSound(int sound, TapTracer.Trace trace) {
+        if (mAdapterState.state == NfcAdapter.STATE_OFF) {
+            Log.w(TAG, "Not playing sound when NFC is disabled");
+            return;
         }
+        mSoundPlayer.play(sound, trace);
     }
 
     @Override
@@ -563,9 +562,7 @@ public class NfcService extends Application implements DeviceHostListener {
 
         @Override
         public boolean isNdefPushEnabled() throws RemoteException {
-            synchronized (NfcService.this) {
-                return mIsNdefPushEnabled;
-            }
+            return mAdapterState.ndefPushEnabled;
         }
 
         @Override
@@ -632,9 +629,7 @@ public class NfcService extends Application implements DeviceHostListener {
 
         @Override
         public int getState() throws RemoteException {
-            synchronized (NfcService.this) {
-                return mState;
-            }
+            return mAdapterState.state;
         }
 
         @Override
@@ -655,7 +650,7 @@ public class NfcService extends Application implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTag(nativeHandle);
             if (tag != null) {
                 /* Remove the device from the hmap */
                 unregisterObject(nativeHandle);
@@ -680,17 +675,12 @@ public class NfcService extends Application implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTag(nativeHandle);
             if (tag == null) {
         		Log.d(TAG, "connect3");
                 return ErrorCodes.ERROR_DISCONNECT;
             }
 
-            if (technology == TagTechnology.NFC_B) {
-        		Log.d(TAG, "connect4");
-                return ErrorCodes.ERROR_NOT_SUPPORTED;
-            }
-
             // Note that on most tags, all technologies are behind a single
             // handle. This means that the connect at the lower levels
             // will do nothing, as the tag is already connected to that handle.
@@ -714,7 +704,7 @@ public class NfcService extends Application implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTag(nativeHandle);
             if (tag != null) {
                 if (tag.reconnect()) {
                     return ErrorCodes.SUCCESS;
@@ -735,7 +725,7 @@ public class NfcService extends Application implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            TagEndpoint tag = (TagEndpoint) findObject(nativeHandle);
+            TagEndpoint tag = findTag(nativeHandle);
             if (tag != null) {
                 return tag.getTechList();
             }
@@ -753,7 +743,7 @@ public class NfcService extends Application implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTag(nativeHandle);
             if (tag != null) {
                 uid = tag.getUid();
                 return uid;
@@ -771,7 +761,7 @@ public class NfcService extends Application implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTag(nativeHandle);
             if (tag == null) {
                 return false;
             }
@@ -789,7 +779,7 @@ public class NfcService extends Application implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTag(nativeHandle);
             int[] ndefInfo = new int[2];
             if (tag == null) {
                 return false;
@@ -803,7 +793,6 @@ public class NfcService extends Application implements DeviceHostListener {
             mContext.enforceCallingOrSelfPermission(NFC_PERM, NFC_PERM_ERROR);
 
             TagEndpoint tag = null;
-            byte[] response;
 
             // Check if NFC is enabled
             if (!isNfcEnabled()) {
@@ -811,23 +800,16 @@ public class NfcService extends Application implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTag(nativeHandle);
             if (tag != null) {
-                // Check if length is within limits
-                if (data.length > getMaxTransceiveLength(tag.getConnectedTechnology())) {
-                    return new TransceiveResult(TransceiveResult.RESULT_EXCEEDED_LENGTH, null);
-                }
-                int[] targetLost = new int[1];
-                response = tag.transceive(data, raw, targetLost);
-                int result;
-                if (response != null) {
-                    result = TransceiveResult.RESULT_SUCCESS;
-                } else if (targetLost[0] == 1) {
-                    result = TransceiveResult.RESULT_TAGLOST;
-                } else {
-                    result = TransceiveResult.RESULT_FAILURE;
+                TagCommandQueue.Turn turn = awaitTurn();
+                try {
+                    byte[][] response = new byte[1][];
+                    int result = transceiveTag(tag, data, raw, response);
+                    return new TransceiveResult(result, response[0]);
+                } finally {
+                    turn.done();
                 }
-                return new TransceiveResult(result, response);
             }
             return null;
         }
@@ -844,9 +826,15 @@ public class NfcService extends Application implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTag(nativeHandle);
             if (tag != null) {
-                byte[] buf = tag.readNdef();
+                byte[] buf;
+                TagCommandQueue.Turn turn = awaitTurn();
+                try {
+                    buf = tag.readNdef();
+                } finally {
+                    turn.done();
+                }
                 if (buf == null) {
                     return null;
                 }
@@ -873,15 +861,20 @@ public class NfcService extends Application implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTag(nativeHandle);
             if (tag == null) {
                 return ErrorCodes.ERROR_IO;
             }
 
-            if (tag.writeNdef(msg.toByteArray())) {
-                return ErrorCodes.SUCCESS;
-            } else {
-                return ErrorCodes.ERROR_IO;
+            TagCommandQueue.Turn turn = awaitTurn();
+            try {
+                if (tag.writeNdef(msg.toByteArray())) {
+                    return ErrorCodes.SUCCESS;
+                } else {
+                    return ErrorCodes.ERROR_IO;
+                }
+            } finally {
+                turn.done();
             }
 
         }
@@ -908,15 +901,20 @@ public class NfcService extends Application implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTag(nativeHandle);
             if (tag == null) {
                 return ErrorCodes.ERROR_IO;
             }
 
-            if (tag.makeReadOnly()) {
-                return ErrorCodes.SUCCESS;
-            } else {
-                return ErrorCodes.ERROR_IO;
+            TagCommandQueue.Turn turn = awaitTurn();
+            try {
+                if (tag.makeReadOnly()) {
+                    return ErrorCodes.SUCCESS;
+                } else {
+                    return ErrorCodes.ERROR_IO;
+                }
+            } finally {
+                turn.done();
             }
         }
 
@@ -932,15 +930,20 @@ public class NfcService extends Application implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTag(nativeHandle);
             if (tag == null) {
                 return ErrorCodes.ERROR_IO;
             }
 
-            if (tag.formatNdef(key)) {
-                return ErrorCodes.SUCCESS;
-            } else {
-                return ErrorCodes.ERROR_IO;
+            TagCommandQueue.Turn turn = awaitTurn();
+            try {
+                if (tag.formatNdef(key)) {
+                    return ErrorCodes.SUCCESS;
+                } else {
+                    return ErrorCodes.ERROR_IO;
+                }
+            } finally {
+                turn.done();
             }
         }
 
@@ -956,7 +959,7 @@ public class NfcService extends Application implements DeviceHostListener {
             }
 
             /* find the tag in the hmap */
-            tag = (TagEndpoint) findObject(nativeHandle);
+            tag = findTag(nativeHandle);
             if (tag != null) {
                 // For now the prime usecase for rediscover() is to be able
                 // to access the NDEF technology after formatting without
@@ -1017,6 +1020,340 @@ public class NfcService extends Application implements DeviceHostListener {
         }
     };
 
+    /**
+     * Tag operations beyond INfcTag, published as
+     * {@link #TAG_EXTRAS_SERVICE_NAME}. Tags are named by the INfcTag
+     * native handles.
+     */
+    final class TagExtrasService extends INfcTagExtras.Stub {
+        /**
+         * Asynchronous variant of INfcTag.transceive: the request is queued
+         * on the tag command queue and this returns at once. The result goes
+         * to callback with the caller's requestId. A client may keep several
+         * requests queued; they run in order, taking turns with other clients'
+         * requests. If the client is over its rate, its queue is full, or the
+         * tag is gone, the callback gets RESULT_FAILURE right away.
+         */
+        @Override
+        public void transceiveAsync(final int nativeHandle, final byte[] data, final boolean raw,
+                final int requestId, final ITransceiveCallback callback) throws RemoteException {
+            mContext.enforceCallingOrSelfPermission(NFC_PERM, NFC_PERM_ERROR);
+
+            if (!isNfcEnabled() || (findTag(nativeHandle) == null) || !admit(1)) {
+                completeTransceive(callback, requestId, TransceiveResult.RESULT_FAILURE, null);
+                return;
+            }
+            final int uid = Binder.getCallingUid();
+            boolean queued = mTagCommandQueue.submit(uid, new Runnable() {
+                @Override
+                public void run() {
+                    // the tag may have been closed while this was queued
+                    TagEndpoint tag = isNfcEnabled() ? findTag(nativeHandle) : null;
+                    if (tag == null) {
+                        completeTransceive(callback, requestId,
+                                TransceiveResult.RESULT_TAGLOST, null);
+                        return;
+                    }
+                    byte[][] response = new byte[1][];
+                    int result = transceiveTag(tag, data, raw, response);
+                    completeTransceive(callback, requestId, result, response[0]);
+                }
+            });
+            if (!queued) {
+                Log.w(TAG, "transceiveAsync: queue full for uid " + uid);
+                mClientThrottle.noteRejected(uid);
+                completeTransceive(callback, requestId, TransceiveResult.RESULT_FAILURE, null);
+            }
+        }
+
+        private void completeTransceive(ITransceiveCallback callback, int requestId,
+                int result, byte[] response) {
+            try {
+                callback.onTransceiveComplete(requestId, result, response);
+            } catch (RemoteException e) {
+                // the client is gone; nothing to deliver to
+            }
+        }
+
+        /**
+         * Batch variant of INfcTag.transceive: all commands are sent to the
+         * tag under a single lock, with one pause of the presence check.
+         * Command i is lengths[i] bytes of commands, following command i - 1.
+         *
+         * <p>Returns one result per command that was sent. If stopOnFailure is
+         * set, the array ends with the first failed exchange. If any command
+         * exceeds the maximum transceive length nothing is sent, and a single
+         * RESULT_EXCEEDED_LENGTH entry is returned.
+         */
+        @Override
+        public TransceiveResult[] transceiveBatch(int nativeHandle, byte[] commands,
+                int[] lengths, boolean raw, boolean stopOnFailure) throws RemoteException {
+            mContext.enforceCallingOrSelfPermission(NFC_PERM, NFC_PERM_ERROR);
+
+            TagEndpoint tag = null;
+
+            // Check if NFC is enabled
+            if (!isNfcEnabled()) {
+                return null;
+            }
+
+            /* find the tag in the hmap */
+            tag = findTag(nativeHandle);
+            if (tag == null) {
+                return null;
+            }
+
+            byte[][] data = splitCommands(commands, lengths);
+            if (data == null) {
+                return null;
+            }
+
+            // Check if length is within limits
+            int maxLength = mDeviceHost.getMaxTransceiveLength(tag.getConnectedTechnology());
+            for (byte[] command : data) {
+                if (command.length > maxLength) {
+                    return new TransceiveResult[] {
+                        new TransceiveResult(TransceiveResult.RESULT_EXCEEDED_LENGTH, null)
+                    };
+                }
+            }
+
+            int[] targetLost = new int[1];
+            byte[][] responses;
+            TagCommandQueue.Turn turn = awaitTurn();
+            try {
+                responses = tag.transceive(data, raw, stopOnFailure, targetLost);
+            } finally {
+                turn.done();
+            }
+            TransceiveResult[] results = new TransceiveResult[responses.length];
+            for (int i = 0; i < responses.length; i++) {
+                int result;
+                if (responses[i] != null) {
+                    result = TransceiveResult.RESULT_SUCCESS;
+                } else if (targetLost[0] == 1) {
+                    result = TransceiveResult.RESULT_TAGLOST;
+                } else {
+                    result = TransceiveResult.RESULT_FAILURE;
+                }
+                results[i] = new TransceiveResult(result, responses[i]);
+            }
+            return results;
+        }
+
+        /** Cuts commands into lengths.length pieces, or null if they do not add up. */
+        private byte[][] splitCommands(byte[] commands, int[] lengths) {
+            if ((commands == null) || (lengths == null)) {
+                return null;
+            }
+            byte[][] data = new byte[lengths.length][];
+            int offset = 0;
+            for (int i = 0; i < lengths.length; i++) {
+                if ((lengths[i] < 0) || (lengths[i] > commands.length - offset)) {
+                    return null;
+                }
+                data[i] = new byte[lengths[i]];
+                System.arraycopy(commands, offset, data[i], 0, lengths[i]);
+                offset += lengths[i];
+            }
+            return (offset == commands.length) ? data : null;
+        }
+
+        /**
+         * Reads FeliCa blocks given as (service code, block number) pairs.
+         * The tag packs them into multi-service, multi-block Read Without
+         * Encryption commands, so N blocks cost about N / Nbr exchanges.
+         *
+         * <p>Returns one result per block: RESULT_SUCCESS with the 16 block
+         * bytes, or RESULT_FAILURE if the card rejected the block. Returns
+         * null if the tag is gone or stopped answering.
+         */
+        @Override
+        public TransceiveResult[] felicaRead(int nativeHandle, int[] serviceCodes, int[] blocks)
+                throws RemoteException {
+            mContext.enforceCallingOrSelfPermission(NFC_PERM, NFC_PERM_ERROR);
+
+            // Check if NFC is enabled
+            if (!isNfcEnabled()) {
+                return null;
+            }
+
+            /* find the tag in the hmap */
+            TagEndpoint tag = findTag(nativeHandle);
+            if (tag == null) {
+                return null;
+            }
+            if ((serviceCodes == null) || (blocks == null)
+                    || (serviceCodes.length != blocks.length)) {
+                return null;
+            }
+            byte[][] data;
+            TagCommandQueue.Turn turn = awaitTurn();
+            try {
+                data = tag.felicaRead(serviceCodes, blocks);
+            } finally {
+                turn.done();
+            }
+            if (data == null) {
+                return null;
+            }
+            TransceiveResult[] results = new TransceiveResult[data.length];
+            for (int i = 0; i < data.length; i++) {
+                results[i] = new TransceiveResult((data[i] != null)
+                        ? TransceiveResult.RESULT_SUCCESS : TransceiveResult.RESULT_FAILURE,
+                        data[i]);
+            }
+            return results;
+        }
+
+        /**
+         * Buffers one FeliCa block write; see TagEndpoint.felicaWriteBuffered.
+         */
+        @Override
+        public boolean felicaWriteBuffered(int nativeHandle, int serviceCode, int block,
+                byte[] data) throws RemoteException {
+            mContext.enforceCallingOrSelfPermission(NFC_PERM, NFC_PERM_ERROR);
+
+            if (!isNfcEnabled()) {
+                return false;
+            }
+            TagEndpoint tag = findTag(nativeHandle);
+            if (tag == null) {
+                return false;
+            }
+            return tag.felicaWriteBuffered(serviceCode, block, data);
+        }
+
+        /**
+         * Sends the buffered FeliCa writes; see TagEndpoint.felicaCommitWrites.
+         */
+        @Override
+        public boolean felicaCommitWrites(int nativeHandle) throws RemoteException {
+            mContext.enforceCallingOrSelfPermission(NFC_PERM, NFC_PERM_ERROR);
+
+            if (!isNfcEnabled()) {
+                return false;
+            }
+            TagEndpoint tag = findTag(nativeHandle);
+            if (tag == null) {
+                return false;
+            }
+            TagCommandQueue.Turn turn = awaitTurn();
+            try {
+                return tag.felicaCommitWrites();
+            } finally {
+                turn.done();
+            }
+        }
+
+        /**
+         * Opts this tag in to (or out of) FeliCa read-ahead; see
+         * TagEndpoint.setFelicaReadAhead.
+         */
+        @Override
+        public boolean setFelicaReadAhead(int nativeHandle, boolean on) throws RemoteException {
+            mContext.enforceCallingOrSelfPermission(NFC_PERM, NFC_PERM_ERROR);
+
+            if (!isNfcEnabled()) {
+                return false;
+            }
+            TagEndpoint tag = findTag(nativeHandle);
+            if (tag == null) {
+                return false;
+            }
+            return tag.setFelicaReadAhead(on);
+        }
+
+        /**
+         * FeliCa system codes of the tag; see TagEndpoint.felicaRequestSystemCodes.
+         */
+        @Override
+        public int[] felicaRequestSystemCodes(int nativeHandle) throws RemoteException {
+            mContext.enforceCallingOrSelfPermission(NFC_PERM, NFC_PERM_ERROR);
+
+            if (!isNfcEnabled()) {
+                return null;
+            }
+            TagEndpoint tag = findTag(nativeHandle);
+            if (tag == null) {
+                return null;
+            }
+            TagCommandQueue.Turn turn = awaitTurn();
+            try {
+                return tag.felicaRequestSystemCodes();
+            } finally {
+                turn.done();
+            }
+        }
+
+        /**
+         * FeliCa area and service codes of one system; see
+         * TagEndpoint.felicaSearchServiceCodes.
+         */
+        @Override
+        public int[] felicaSearchServiceCodes(int nativeHandle, int systemCode)
+                throws RemoteException {
+            mContext.enforceCallingOrSelfPermission(NFC_PERM, NFC_PERM_ERROR);
+
+            if (!isNfcEnabled()) {
+                return null;
+            }
+            TagEndpoint tag = findTag(nativeHandle);
+            if (tag == null) {
+                return null;
+            }
+            TagCommandQueue.Turn turn = awaitTurn();
+            try {
+                return tag.felicaSearchServiceCodes(systemCode);
+            } finally {
+                turn.done();
+            }
+        }
+    }
+
+    /**
+     * Charges the calling client cost tag operations. Only requests that
+     * can report a refusal on their own, such as asynchronous transceives,
+     * are charged; synchronous calls wait in {@link #awaitTurn} instead.
+     *
+     * @return false if the client is over its rate and must be refused
+     */
+    private boolean admit(int cost) {
+        return mClientThrottle.tryAcquire(Binder.getCallingUid(), cost);
+    }
+
+    /**
+     * Waits for the calling client's turn on the tag command queue, so
+     * synchronous tag I/O is served in the same fair order as queued
+     * requests. End the turn with {@link TagCommandQueue.Turn#done}.
+     */
+    private TagCommandQueue.Turn awaitTurn() {
+        return mTagCommandQueue.awaitTurn(Binder.getCallingUid());
+    }
+
+    /**
+     * One exchange with tag.
+     *
+     * @param response receives the tag's response in [0]
+     * @return one of TransceiveResult.RESULT_*
+     */
+    private int transceiveTag(TagEndpoint tag, byte[] data, boolean raw,
+            byte[][] response) {
+        // Check if length is within limits
+        if (data.length > mDeviceHost.getMaxTransceiveLength(tag.getConnectedTechnology())) {
+            return TransceiveResult.RESULT_EXCEEDED_LENGTH;
+        }
+        int[] targetLost = new int[1];
+        response[0] = tag.transceive(data, raw, targetLost);
+        if (response[0] != null) {
+            return TransceiveResult.RESULT_SUCCESS;
+        } else if (targetLost[0] == 1) {
+            return TransceiveResult.RESULT_TAGLOST;
+        } else {
+            return TransceiveResult.RESULT_FAILURE;
+        }
+    }
+
     final class NfcAdapterExtrasService extends INfcAdapterExtras.Stub {
         private Bundle writeNoException() {
             Bundle p = new Bundle();
@@ -1077,9 +1414,7 @@ public class NfcService extends Application implements DeviceHostListener {
         }
     };
     boolean isNfcEnabled() {
-        synchronized (this) {
-            return mState == NfcAdapter.STATE_ON;
-        }
+        return mAdapterState.state == NfcAdapter.STATE_ON;
     }
 
     class WatchDogThread extends Thread {
@@ -1156,14 +1491,7 @@ public class NfcService extends Application implements DeviceHostListener {
         if (!isNfcEnabled()) {
             return;
         }
-        Object[] objectsToDisconnect;
-        synchronized (this) {
-            Object[] objectValues = mObjectMap.values().toArray();
-            // Copy the array before we clear mObjectMap,
-            // just in case the HashMap values are backed by the same array
-            objectsToDisconnect = Arrays.copyOf(objectValues, objectValues.length);
-            mObjectMap.clear();
-        }
+        List<Object> objectsToDisconnect = mObjectMap.clear();
         for (Object o : objectsToDisconnect) {
             if (DBG) Log.d(TAG, "disconnecting " + o.getClass().getName());
             if (o instanceof TagEndpoint) {
@@ -1174,26 +1502,21 @@ public class NfcService extends Application implements DeviceHostListener {
         }
     }
 
-    Object findObject(int key) {
-        synchronized (this) {
-            Object device = mObjectMap.get(key);
-            if (device == null) {
-                Log.w(TAG, "Handle not found");
-            }
-            return device;
-        }
+    TagEndpoint findTag(int key) {
+        return mObjectMap.get(key, TagEndpoint.class);
+    }
+
+    /** Returns false if no activities were found to dispatch to */
+    boolean dispatchTag(Tag tag, NdefMessage[] msgs) {
+        return mNfcDispatcher.dispatchTag(tag, msgs);
     }
 
     void registerTagObject(TagEndpoint tag) {
-        synchronized (this) {
-            mObjectMap.put(tag.getHandle(), tag);
-        }
+        mObjectMap.put(tag.getHandle(), tag);
     }
 
     void unregisterObject(int handle) {
-        synchronized (this) {
-            mObjectMap.remove(handle);
-        }
+        mObjectMap.remove(handle);
     }
 
     /** For use by code in this process */
@@ -1245,26 +1568,6 @@ public class NfcService extends Application implements DeviceHostListener {
                     break;
                 }
 
-                case MSG_NDEF_TAG:
-                    if (DBG) Log.d(TAG, "Tag detected, notifying applications");
-                    TagEndpoint tag = (TagEndpoint) msg.obj;
-                    playSound(SOUND_START);
-                    NdefMessage[] ndefMsgs = tag.findAndReadNdef();
-
-                    if (ndefMsgs != null) {
-                        tag.startPresenceChecking();
-                        dispatchTagEndpoint(tag, ndefMsgs);
-                    } else {
-                        if (tag.reconnect()) {
-                            tag.startPresenceChecking();
-                            dispatchTagEndpoint(tag, null);
-                        } else {
-                            tag.disconnect();
-                            playSound(SOUND_ERROR);
-                        }
-                    }
-                    break;
-
                 case MSG_CARD_EMULATION:
                     if (DBG) Log.d(TAG, "Card Emulation message");
                     byte[] aid = (byte[]) msg.obj;
@@ -1351,19 +1654,6 @@ public class NfcService extends Application implements DeviceHostListener {
             // Resume app switches so the receivers can start activites without delay
             mNfcDispatcher.resumeAppSwitches();
         }
-
-        private void dispatchTagEndpoint(TagEndpoint tagEndpoint, NdefMessage[] msgs) {
-            Log.d(TAG, "dispatchTagEndpoint");
-            Tag tag = new Tag(tagEndpoint.getUid(), tagEndpoint.getTechList(),
-                    tagEndpoint.getTechExtras(), tagEndpoint.getHandle(), mNfcTagService);
-            registerTagObject(tagEndpoint);
-            if (!mNfcDispatcher.dispatchTag(tag, msgs)) {
-                unregisterObject(tagEndpoint.getHandle());
-                playSound(SOUND_ERROR);
-            } else {
-                playSound(SOUND_END);
-            }
-        }
     }
 
     private NfcServiceHandler mHandler = new NfcServiceHandler();
@@ -1451,13 +1741,33 @@ public class NfcService extends Application implements DeviceHostListener {
             return;
         }
 
-        synchronized (this) {
-            pw.println("mState=" + stateToString(mState));
-            pw.println("mScreenState=" + screenStateToString(mScreenState));
-            pw.println("mNfcPollingEnabled=" + mNfcPollingEnabled);
-            pw.println("mNfceeRouteEnabled=" + mNfceeRouteEnabled);
-            pw.println("mIsAirplaneSensitive=" + mIsAirplaneSensitive);
-            pw.println("mIsAirplaneToggleable=" + mIsAirplaneToggleable);
+        DumpBuilder d = new DumpBuilder(pw, args);
+        if (d.section("adapter")) {
+            d.put("mState", stateToString(mAdapterState.state));
+            d.put("enable_ms", mEnableMillis);
+            synchronized (this) {
+                d.put("mScreenState", screenStateToString(mScreenState));
+                d.put("mNfcPollingEnabled", mNfcPollingEnabled);
+                d.put("mNfceeRouteEnabled", mNfceeRouteEnabled);
+                d.put("mIsAirplaneSensitive", mIsAirplaneSensitive);
+                d.put("mIsAirplaneToggleable", mIsAirplaneToggleable);
+            }
+        }
+        mDeviceHost.dump(d);
+        if (d.section("handles")) {
+            mObjectMap.dump(d);
+        }
+        if (d.section("queue")) {
+            mTagCommandQueue.dump(d);
+        }
+        if (d.section("clients")) {
+            mClientThrottle.dump(d);
+        }
+        mDiscoveryPipeline.dump(d);
+        if (d.section("sound")) {
+            mSoundPlayer.dump(d);
         }
+        TapTracer.dump(d);
+        d.finish();
     }
 }
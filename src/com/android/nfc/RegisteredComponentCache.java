@@ -35,10 +35,15 @@ import android.util.Log;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * A cache of intent filters registered to receive the TECH_DISCOVERED dispatch.
+ *
+ * <p>The first scan of the installed packages runs on its own thread, so
+ * that creating the cache does not hold up service start. Until it is done,
+ * {@link #getComponents()} waits for it.
  */
 public class RegisteredComponentCache {
     private static final String TAG = "RegisteredComponentCache";
@@ -51,12 +56,31 @@ public class RegisteredComponentCache {
     // synchronized on this
     private ArrayList<ComponentInfo> mComponents;
 
+    private final CountDownLatch mFirstScan = new CountDownLatch(1);
+
     public RegisteredComponentCache(Context context, String action, String metaDataName) {
         mContext = context;
         mAction = action;
         mMetaDataName = metaDataName;
 
-        generateComponentsList();
+        new Thread("NfcComponentScan") {
+            @Override
+            public void run() {
+                try {
+                    generateComponentsList();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "First component scan failed", e);
+                    synchronized (RegisteredComponentCache.this) {
+                        if (mComponents == null) {
+                            mComponents = new ArrayList<ComponentInfo>();
+                        }
+                    }
+                } finally {
+                    // getComponents() must never wait for a scan that is over
+                    mFirstScan.countDown();
+                }
+            }
+        }.start();
 
         final BroadcastReceiver receiver = new BroadcastReceiver() {
             @Override
@@ -105,10 +129,15 @@ public class RegisteredComponentCache {
      * registered authenticators.
      */
     public ArrayList<ComponentInfo> getComponents() {
+        try {
+            mFirstScan.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         synchronized (this) {
             // It's safe to return a reference here since mComponents is always replaced and
             // never updated when it changes.
-            return mComponents;
+            return (mComponents != null) ? mComponents : new ArrayList<ComponentInfo>();
         }
     }
 
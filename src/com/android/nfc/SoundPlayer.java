@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.content.Context;
+import android.media.AudioManager;
+import android.media.SoundPool;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.os.Process;
+import android.util.Log;
+
+/**
+ * Feedback sounds for taps.
+ *
+ * <p>{@link #play} only posts to the sound thread, so callers never wait on
+ * a lock or on SoundPool. The samples are decoded when the adapter is
+ * enabled and each is played once at zero volume as soon as it is loaded,
+ * so the first real tap does not pay for audio track setup. The pool has
+ * one stream per sound, so an end sound does not cut off the start sound.
+ *
+ * <p>For each sound, the time from card detection to playback is kept for
+ * dumpsys.
+ */
+final class SoundPlayer {
+    private static final String TAG = "SoundPlayer";
+
+    private static final int[] RESOURCES = { R.raw.start, R.raw.end, R.raw.error };
+    private static final String[] NAMES = { "start", "end", "error" };
+
+    private final HandlerThread mThread = new HandlerThread("NfcSound",
+            Process.THREAD_PRIORITY_URGENT_AUDIO);
+    private final Handler mHandler;
+
+    // only touched on the sound thread
+    private SoundPool mPool;
+    private final int[] mSampleIds = new int[RESOURCES.length];
+    private final boolean[] mLoaded = new boolean[RESOURCES.length];
+
+    // detection to playback in ms, per sound; guarded by this
+    private final int[] mCount = new int[RESOURCES.length];
+    private final long[] mTotalMs = new long[RESOURCES.length];
+    private final long[] mMaxMs = new long[RESOURCES.length];
+    private int mDropped;
+
+    private static final int MSG_LOAD = 0;
+    private static final int MSG_RELEASE = 1;
+    private static final int MSG_PLAY = 2;
+
+    /** A sound to play and the tap it belongs to. */
+    private static final class Request {
+        final int sound;
+        final TapTracer.Trace trace;
+        final long triggerNanos;
+
+        Request(int sound, TapTracer.Trace trace, long triggerNanos) {
+            this.sound = sound;
+            this.trace = trace;
+            this.triggerNanos = triggerNanos;
+        }
+    }
+
+    SoundPlayer() {
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper()) {
+            @Override
+            public void handleMessage(Message msg) {
+                switch (msg.what) {
+                    case MSG_LOAD:
+                        doLoad((Context) msg.obj);
+                        break;
+                    case MSG_RELEASE:
+                        doRelease();
+                        break;
+                    case MSG_PLAY:
+                        doPlay((Request) msg.obj);
+                        break;
+                }
+            }
+        };
+    }
+
+    /** Decodes and warms up the samples; returns at once. */
+    void load(Context context) {
+        mHandler.obtainMessage(MSG_LOAD, context).sendToTarget();
+    }
+
+    /** Frees the samples; later plays are dropped until the next load. */
+    void release() {
+        mHandler.sendEmptyMessage(MSG_RELEASE);
+    }
+
+    /**
+     * Plays sound (one of NfcService.SOUND_*); returns at once.
+     *
+     * @param trace the tap this sound is for, or null
+     */
+    void play(int sound, TapTracer.Trace trace) {
+        if ((sound < 0) || (sound >= RESOURCES.length)) {
+            return;
+        }
+        mHandler.obtainMessage(MSG_PLAY, new Request(sound, trace, TapTracer.now()))
+                .sendToTarget();
+    }
+
+    private void doLoad(Context context) {
+        if (mPool != null) {
+            return;
+        }
+        // created here, so load completions are delivered on this thread
+        mPool = new SoundPool(RESOURCES.length, AudioManager.STREAM_NOTIFICATION, 0);
+        mPool.setOnLoadCompleteListener(new SoundPool.OnLoadCompleteListener() {
+            @Override
+            public void onLoadComplete(SoundPool pool, int sampleId, int status) {
+                if ((pool != mPool) || (status != 0)) {
+                    if (status != 0) Log.w(TAG, "Failed to load sample " + sampleId);
+                    return;
+                }
+                // silent play, so the first audible one starts at once
+                pool.play(sampleId, 0.0f, 0.0f, 0, 0, 1.0f);
+                for (int i = 0; i < mSampleIds.length; i++) {
+                    if (mSampleIds[i] == sampleId) {
+                        mLoaded[i] = true;
+                    }
+                }
+            }
+        });
+        for (int i = 0; i < RESOURCES.length; i++) {
+            mLoaded[i] = false;
+            mSampleIds[i] = mPool.load(context, RESOURCES[i], 1);
+        }
+    }
+
+    private void doRelease() {
+        if (mPool != null) {
+            mPool.release();
+            mPool = null;
+        }
+    }
+
+    private void doPlay(Request r) {
+        if ((mPool == null) || !mLoaded[r.sound]) {
+            Log.w(TAG, "Not playing " + NAMES[r.sound] + " sound, not loaded");
+            synchronized (this) {
+                mDropped++;
+            }
+            return;
+        }
+        mPool.play(mSampleIds[r.sound], 1.0f, 1.0f, 0, 0, 1.0f);
+        if (r.trace != null) {
+            r.trace.end("sound_" + NAMES[r.sound], r.triggerNanos);
+            long ms = r.trace.elapsedMillis();
+            synchronized (this) {
+                mCount[r.sound]++;
+                mTotalMs[r.sound] += ms;
+                if (ms > mMaxMs[r.sound]) {
+                    mMaxMs[r.sound] = ms;
+                }
+            }
+        }
+    }
+
+    synchronized void dump(DumpBuilder d) {
+        // sound=count/avg ms/max ms, from card detection
+        for (int i = 0; i < NAMES.length; i++) {
+            long avg = (mCount[i] > 0) ? mTotalMs[i] / mCount[i] : 0;
+            d.put(NAMES[i], mCount[i] + "/" + avg + "/" + mMaxMs[i]);
+        }
+        d.put("dropped", mDropped);
+    }
+}
@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import android.util.SparseArray;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Orders tag I/O between the service and its clients. The reader is held
+ * by one party at a time: a queued request running on the worker thread,
+ * or a synchronous Binder call that was given a {@link Turn}.
+ *
+ * <p>Discovery reads and asynchronous transceives run on the worker thread,
+ * back to back, with no Binder round trip between them. A synchronous call
+ * that finds the reader free and nothing queued gets its turn at once, on
+ * its own thread. Otherwise it waits in its client's queue and is handed
+ * the reader when its turn comes; the worker does not wait for it.
+ *
+ * <p>Client requests are queued per UID and served round robin, one
+ * request per client in turn, so a client with a long backlog does not
+ * delay the others. The service's own work ({@link #execute}) goes ahead of
+ * all client requests.
+ *
+ * <p>The device host's poll and presence-check threads do not use this
+ * queue; they serialize with everything else on the NfcPcd device lock.
+ */
+final class TagCommandQueue {
+    /** Queued requests per client allowed before {@link #submit} refuses. */
+    static final int MAX_PENDING = 32;
+
+    private volatile Thread mWorkerThread;
+    private final ExecutorService mWorker = Executors.newSingleThreadExecutor(
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    mWorkerThread = new Thread(r, "NfcTagIo");
+                    return mWorkerThread;
+                }
+            });
+
+    /** Queued requests of one client. */
+    private static final class Client {
+        final int uid;
+        final ArrayDeque<Runnable> requests = new ArrayDeque<Runnable>();
+
+        Client(int uid) {
+            this.uid = uid;
+        }
+    }
+
+    // all guarded by this
+    private final ArrayDeque<Runnable> mSystem = new ArrayDeque<Runnable>();
+    private final SparseArray<Client> mClients = new SparseArray<Client>();
+    private final ArrayDeque<Client> mTurns = new ArrayDeque<Client>();
+    private int mPending;
+    private boolean mHeld;      // the reader is in use by a request or a turn
+
+    // statistics; guarded by this
+    private int mCompleted;
+    private int mRejected;
+    private int mDirectTurns;
+    private int mQueuedTurns;
+
+    /**
+     * A synchronous caller's hold on the reader. The worker runs nothing
+     * while a turn is held, so end it promptly with {@link #done}.
+     */
+    final class Turn implements Runnable {
+        private final boolean mOwner;
+        private boolean mGranted;   // guarded by TagCommandQueue.this
+        private boolean mDone;      // guarded by TagCommandQueue.this
+
+        Turn(boolean owner) {
+            mOwner = owner;
+        }
+
+        /** Ends the turn; call it in a finally block. */
+        void done() {
+            synchronized (TagCommandQueue.this) {
+                if (!mOwner || mDone) {
+                    return;
+                }
+                mDone = true;
+                mHeld = false;
+                mCompleted++;
+                dispatch();
+            }
+        }
+
+        /** Called by dispatch() when the turn comes up in the queue. */
+        @Override
+        public void run() {
+            mGranted = true;
+            TagCommandQueue.this.notifyAll();
+        }
+    }
+
+    /** Runs one queued request on the worker, then hands the reader on. */
+    private final class Request implements Runnable {
+        private final Runnable mCommand;
+
+        Request(Runnable command) {
+            mCommand = command;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mCommand.run();
+            } finally {
+                synchronized (TagCommandQueue.this) {
+                    mHeld = false;
+                    mCompleted++;
+                    dispatch();
+                }
+            }
+        }
+    }
+
+    /**
+     * Gives the reader to the next request in fair order, if it is free.
+     * Must be called with the lock held.
+     */
+    private void dispatch() {
+        if (mHeld) {
+            return;
+        }
+        Runnable next = mSystem.poll();
+        if (next == null) {
+            Client client = mTurns.poll();
+            if (client == null) {
+                return;
+            }
+            next = client.requests.poll();
+            if (!client.requests.isEmpty()) {
+                mTurns.add(client);
+            } else {
+                mClients.remove(client.uid);
+            }
+            mPending--;
+        }
+        mHeld = true;
+        if (next instanceof Turn) {
+            // the waiting Binder thread does the I/O itself
+            next.run();
+        } else {
+            mWorker.execute(new Request(next));
+        }
+    }
+
+    /** Queues work that must not be refused, such as reading a new tag. */
+    synchronized void execute(Runnable command) {
+        mSystem.add(command);
+        dispatch();
+    }
+
+    /**
+     * Queues a request of client uid.
+     *
+     * @return false if {@link #MAX_PENDING} requests of uid are already
+     *         waiting
+     */
+    synchronized boolean submit(int uid, Runnable request) {
+        return enqueue(uid, request, true);
+    }
+
+    /**
+     * Waits until it is client uid's turn, then lets the calling thread use
+     * the reader until {@link Turn#done}. When the reader is free and
+     * nothing is queued the turn starts at once, with no thread handoff.
+     * This is never refused: a client can only have as many turns waiting
+     * as it has Binder calls in flight. On the worker thread, which already
+     * holds the reader, the turn starts at once and done() does nothing.
+     */
+    Turn awaitTurn(int uid) {
+        if (Thread.currentThread() == mWorkerThread) {
+            return new Turn(false);
+        }
+        Turn turn = new Turn(true);
+        boolean interrupted = false;
+        synchronized (this) {
+            if (!mHeld && mSystem.isEmpty() && (mPending == 0)) {
+                mHeld = true;
+                mDirectTurns++;
+                return turn;
+            }
+            mQueuedTurns++;
+            enqueue(uid, turn, false);
+            while (!turn.mGranted) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return turn;
+    }
+
+    /** Must be called with the lock held. */
+    private boolean enqueue(int uid, Runnable request, boolean bounded) {
+        Client client = mClients.get(uid);
+        if (client == null) {
+            client = new Client(uid);
+            mClients.put(uid, client);
+        }
+        if (bounded && (client.requests.size() >= MAX_PENDING)) {
+            mRejected++;
+            return false;
+        }
+        if (client.requests.isEmpty()) {
+            mTurns.add(client);
+        }
+        client.requests.add(request);
+        mPending++;
+        dispatch();
+        return true;
+    }
+
+    synchronized void dump(DumpBuilder d) {
+        d.put("pending", mPending);
+        d.put("waiting_clients", mTurns.size());
+        d.put("completed", mCompleted);
+        d.put("rejected", mRejected);
+        d.put("direct_turns", mDirectTurns);
+        d.put("queued_turns", mQueuedTurns);
+    }
+}
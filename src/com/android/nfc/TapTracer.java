@@ -0,0 +1,225 @@
+/*
+ * Copyright (C) 2011 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Tap-to-dispatch latency tracing.
+ *
+ * <p>The device host opens a {@link Trace} when its poll first sees a card
+ * and hands it on with the tag endpoint. Each step on the way to the
+ * activity records a child span. {@link Trace#finish()} ends the trace.
+ * Percentiles are kept over the last {@link #WINDOW} taps, for the whole tap
+ * and for each span name. The last {@link #RECENT} traces are kept in full
+ * for dumpsys.
+ *
+ * <p>A span costs two {@link #now()} calls and a short
+ * synchronized append, so tracing is always on.
+ */
+public final class TapTracer {
+    private static final int WINDOW = 256;
+    private static final int RECENT = 16;
+    private static final int MAX_SPANS = 16;
+
+    static final String TOTAL = "total";
+
+    private static final ThreadLocal<Trace> sCurrent = new ThreadLocal<Trace>();
+
+    // all guarded by sSamples
+    private static final Map<String, Samples> sSamples = new LinkedHashMap<String, Samples>();
+    private static final String[] sRecent = new String[RECENT];
+    private static int sRecentNext;
+    private static int sNextId;
+
+    private TapTracer() {}
+
+    /**
+     * One tap. Spans may be recorded from any thread.
+     */
+    public static final class Trace {
+        private final int mId;
+        private final long mStartNanos;
+        private final String[] mNames = new String[MAX_SPANS];
+        private final long[] mOffsetMicros = new long[MAX_SPANS];
+        private final long[] mMicros = new long[MAX_SPANS];
+        private int mSpans;
+        private boolean mFinished;
+
+        private Trace(int id, long startNanos) {
+            mId = id;
+            mStartNanos = startNanos;
+        }
+
+        /** Time since the card was first seen. */
+        public long elapsedMillis() {
+            return (System.nanoTime() - mStartNanos) / 1000000;
+        }
+
+        /** Records the span name that started at startNanos and ends now. */
+        public void end(String name, long startNanos) {
+            span(name, startNanos, System.nanoTime());
+        }
+
+        /** Records the span name from startNanos to endNanos. */
+        public synchronized void span(String name, long startNanos, long endNanos) {
+            if (mFinished || (mSpans == MAX_SPANS)) {
+                return;
+            }
+            mNames[mSpans] = name;
+            mOffsetMicros[mSpans] = (startNanos - mStartNanos) / 1000;
+            mMicros[mSpans] = (endNanos - startNanos) / 1000;
+            mSpans++;
+        }
+
+        /** Ends the trace; later spans are dropped. */
+        public void finish() {
+            long total = (System.nanoTime() - mStartNanos) / 1000;
+            String[] names;
+            long[] micros;
+            String summary;
+            synchronized (this) {
+                if (mFinished) {
+                    return;
+                }
+                mFinished = true;
+                names = Arrays.copyOf(mNames, mSpans);
+                micros = Arrays.copyOf(mMicros, mSpans);
+                summary = summary(total);
+            }
+            synchronized (sSamples) {
+                samples(TOTAL).add(total);
+                for (int i = 0; i < names.length; i++) {
+                    samples(names[i]).add(micros[i]);
+                }
+                sRecent[sRecentNext] = summary;
+                sRecentNext = (sRecentNext + 1) % RECENT;
+            }
+        }
+
+        private String summary(long totalMicros) {
+            StringBuilder sb = new StringBuilder();
+            sb.append('#').append(mId).append(' ').append(ms(totalMicros)).append("ms");
+            for (int i = 0; i < mSpans; i++) {
+                sb.append(" ").append(mNames[i])
+                        .append("@").append(ms(mOffsetMicros[i]))
+                        .append("+").append(ms(mMicros[i]));
+            }
+            return sb.toString();
+        }
+    }
+
+    /** Percentile window of one span name. */
+    private static final class Samples {
+        final long[] mMicros = new long[WINDOW];
+        int mCount;
+
+        void add(long micros) {
+            mMicros[mCount % WINDOW] = micros;
+            mCount++;
+        }
+
+        long[] sorted() {
+            long[] s = Arrays.copyOf(mMicros, Math.min(mCount, WINDOW));
+            Arrays.sort(s);
+            return s;
+        }
+    }
+
+    /** Timestamp for span starts and ends. */
+    public static long now() {
+        return System.nanoTime();
+    }
+
+    /**
+     * Opens a trace.
+     *
+     * @param startNanos when the card was first seen, from {@link #now()}
+     */
+    public static Trace begin(long startNanos) {
+        int id;
+        synchronized (sSamples) {
+            id = ++sNextId;
+        }
+        return new Trace(id, startNanos);
+    }
+
+    /**
+     * Makes trace the current one of the calling thread, so code further
+     * down the call chain can add spans without it being passed along.
+     * Pass null to clear.
+     */
+    static void setCurrent(Trace trace) {
+        if (trace != null) {
+            sCurrent.set(trace);
+        } else {
+            sCurrent.remove();
+        }
+    }
+
+    /** The calling thread's trace, or null. */
+    static Trace current() {
+        return sCurrent.get();
+    }
+
+    private static Samples samples(String name) {
+        Samples s = sSamples.get(name);
+        if (s == null) {
+            s = new Samples();
+            sSamples.put(name, s);
+        }
+        return s;
+    }
+
+    private static String ms(long micros) {
+        return String.format("%d.%01d", micros / 1000, (micros % 1000) / 100);
+    }
+
+    private static long percentile(long[] sorted, int p) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int i = (sorted.length * p + 99) / 100 - 1;
+        return sorted[Math.max(0, Math.min(i, sorted.length - 1))];
+    }
+
+    /** Percentiles in ms over the last {@link #WINDOW} taps, then the recent taps. */
+    static void dump(DumpBuilder d) {
+        if (!d.section("taps")) {
+            return;
+        }
+        synchronized (sSamples) {
+            // name=count/p50/p90/p99/max
+            for (Map.Entry<String, Samples> e : sSamples.entrySet()) {
+                long[] s = e.getValue().sorted();
+                d.put(e.getKey(), e.getValue().mCount
+                        + "/" + ms(percentile(s, 50))
+                        + "/" + ms(percentile(s, 90))
+                        + "/" + ms(percentile(s, 99))
+                        + "/" + ms((s.length > 0) ? s[s.length - 1] : 0));
+            }
+            for (int i = 0; i < RECENT; i++) {
+                String t = sRecent[(sRecentNext + i) % RECENT];
+                if (t != null) {
+                    d.line(t);
+                }
+            }
+        }
+    }
+}
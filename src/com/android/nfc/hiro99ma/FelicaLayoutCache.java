@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.hiro99ma;
+
+import android.util.SparseArray;
+
+import com.android.nfc.DumpBuilder;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Process-wide cache of FeliCa card layouts (system codes, and the area and
+ * service codes of each system), keyed by IDm + PMm.
+ *
+ * <p>A card's layout only changes when the card is issued again, and
+ * issuing it again normally changes the IDm or the PMm. Repeat taps are
+ * therefore answered from memory. The least recently used cards are
+ * dropped once {@link #MAX_CARDS} is reached.
+ */
+final class FelicaLayoutCache {
+	private static final int MAX_CARDS = 32;
+
+	/**
+	 * What is known about one card. Arrays are never modified once stored.
+	 */
+	static final class Layout {
+		int[] systemCodes;
+		final SparseArray<int[]> services = new SparseArray<int[]>();
+	}
+
+	/**
+	 * IDm + PMm of one card, packed into two longs so that building a key
+	 * on discovery costs no string formatting.
+	 */
+	static final class Key {
+		private final long mIdm;
+		private final long mPmm;
+
+		Key(byte[] idm, byte[] pmm) {
+			mIdm = pack(idm);
+			mPmm = pack(pmm);
+		}
+
+		private static long pack(byte[] bytes) {
+			long v = 0;
+			for (int i = 0; i < 8; i++) {
+				v = (v << 8) | (bytes[i] & 0xff);
+			}
+			return v;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) {
+				return false;
+			}
+			Key k = (Key)o;
+			return (mIdm == k.mIdm) && (mPmm == k.mPmm);
+		}
+
+		@Override
+		public int hashCode() {
+			long h = mIdm * 31 + mPmm;
+			return (int)(h ^ (h >>> 32));
+		}
+	}
+
+	private static final Map<Key, Layout> sLayouts =
+			new LinkedHashMap<Key, Layout>(MAX_CARDS, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Key, Layout> eldest) {
+			return size() > MAX_CARDS;
+		}
+	};
+
+	// statistics; guarded by sLayouts
+	private static int sHits;
+	private static int sMisses;
+	private static int sCommands;
+	private static long sEnumerateMsec;
+
+	private FelicaLayoutCache() {}
+
+	/**
+	 * @param idm	8 bytes
+	 * @param pmm	8 bytes
+	 */
+	static Key key(byte[] idm, byte[] pmm) {
+		return new Key(idm, pmm);
+	}
+
+	static int[] getSystemCodes(Key key) {
+		synchronized (sLayouts) {
+			Layout layout = sLayouts.get(key);
+			return count((layout != null) ? layout.systemCodes : null);
+		}
+	}
+
+	static int[] getServices(Key key, int systemCode) {
+		synchronized (sLayouts) {
+			Layout layout = sLayouts.get(key);
+			return count((layout != null) ? layout.services.get(systemCode) : null);
+		}
+	}
+
+	static void putSystemCodes(Key key, int[] systemCodes) {
+		synchronized (sLayouts) {
+			layout(key).systemCodes = systemCodes;
+		}
+	}
+
+	static void putServices(Key key, int systemCode, int[] services) {
+		synchronized (sLayouts) {
+			layout(key).services.put(systemCode, services);
+		}
+	}
+
+	/** Records the cost of one enumeration that went to the card. */
+	static void recordEnumeration(int commands, long msec) {
+		synchronized (sLayouts) {
+			sCommands += commands;
+			sEnumerateMsec += msec;
+		}
+	}
+
+	static void dump(DumpBuilder d) {
+		synchronized (sLayouts) {
+			int lookups = sHits + sMisses;
+			d.put("layout_cards", sLayouts.size());
+			d.put("layout_hits", sHits);
+			d.put("layout_misses", sMisses);
+			d.put("layout_hit_rate", (lookups > 0) ? (100 * sHits / lookups) + "%" : "-");
+			d.put("layout_commands", sCommands);
+			d.put("layout_enumerate_ms", sEnumerateMsec);
+		}
+	}
+
+	private static Layout layout(Key key) {
+		Layout layout = sLayouts.get(key);
+		if (layout == null) {
+			layout = new Layout();
+			sLayouts.put(key, layout);
+		}
+		return layout;
+	}
+
+	private static int[] count(int[] codes) {
+		if (codes != null) {
+			sHits++;
+		} else {
+			sMisses++;
+		}
+		return codes;
+	}
+}
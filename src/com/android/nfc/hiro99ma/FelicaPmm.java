@@ -0,0 +1,205 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.hiro99ma;
+
+/**
+ * Decoder for the PMm (manufacture parameter) a FeliCa card returns to Polling.
+ *
+ * <p>Bytes 2..7 of the PMm carry the maximum response time of each command
+ * class. Each byte holds three fields, E (bit7-6), B (bit5-3) and A
+ * (bit2-0). For a command that handles n blocks (or nodes) the card answers
+ * within
+ * <pre>
+ *     T = T0 * ((B + 1) * n + (A + 1)) * 4^E,   T0 = 256 * 16 / fc
+ * </pre>
+ */
+final class FelicaPmm {
+	public static final int SIZE_PMM = 8;
+
+	/// PMm byte positions
+	public static final int POS_ROM_TYPE = 0;
+	public static final int POS_IC_TYPE = 1;
+	public static final int POS_REQUEST_SERVICE = 2;	///< variable : Request Service
+	public static final int POS_FIXED = 3;				///< fixed : Request Response etc.
+	public static final int POS_AUTH = 4;				///< variable : Authentication
+	public static final int POS_READ = 5;				///< variable : Read
+	public static final int POS_WRITE = 6;				///< variable : Write
+	public static final int POS_OTHER = 7;				///< issuance commands
+
+	/// command codes
+	public static final byte CMD_POLLING = 0x00;
+	public static final byte CMD_REQUEST_SERVICE = 0x02;
+	public static final byte CMD_REQUEST_RESPONSE = 0x04;
+	public static final byte CMD_READ_WO_ENCRYPTION = 0x06;
+	public static final byte CMD_WRITE_WO_ENCRYPTION = 0x08;
+	public static final byte CMD_SEARCH_SERVICE_CODE = 0x0a;
+	public static final byte CMD_REQUEST_SYSTEM_CODE = 0x0c;
+	public static final byte CMD_AUTHENTICATION1 = 0x10;
+	public static final byte CMD_AUTHENTICATION2 = 0x12;
+	public static final byte CMD_READ = 0x14;
+	public static final byte CMD_WRITE = 0x16;
+
+	/// IC types (PMm byte 1)
+	public static final int IC_TYPE_LITE = 0xf0;
+	public static final int IC_TYPE_LITE_S = 0xf1;
+
+	/// blocks per Read Without Encryption (Nbr)
+	private static final int NBR_LITE = 4;
+	private static final int NBR_DEFAULT = 8;	// conservative; the response must also fit one frame
+
+	/// blocks per Write Without Encryption (Nbw)
+	private static final int NBW_LITE = 1;
+	private static final int NBW_DEFAULT = 8;	// conservative; 16 bytes per block must fit one frame
+
+	// T0 = 256 * 16 / 13.56MHz
+	private static final long T0_NSEC = 302064;
+
+	// RF frame transfer at 212kbps plus PCD turnaround; not part of T
+	private static final int MARGIN_MSEC = 10;
+
+	// [LEN][CMD][IDm(8)] precede the parameters of every command but Polling
+	private static final int POS_PARAM = 10;
+
+	private final byte[] mPmm;
+
+	FelicaPmm(byte[] pmm) {
+		mPmm = new byte[SIZE_PMM];
+		System.arraycopy(pmm, 0, mPmm, 0, SIZE_PMM);
+	}
+
+	public byte[] getBytes() {
+		return mPmm.clone();
+	}
+
+	public int getIcType() {
+		return mPmm[POS_IC_TYPE] & 0xff;
+	}
+
+	/**
+	 * Blocks one Read Without Encryption may ask for (Nbr).
+	 */
+	public int getMaxReadBlocks() {
+		switch (getIcType()) {
+		case IC_TYPE_LITE:
+		case IC_TYPE_LITE_S:
+			return NBR_LITE;
+		default:
+			return NBR_DEFAULT;
+		}
+	}
+
+	/**
+	 * Maximum response time [usec] for a parameter byte and n blocks.
+	 */
+	public long responseTimeUsec(int pos, int n) {
+		int param = mPmm[pos] & 0xff;
+		int a = param & 0x07;
+		int b = (param >> 3) & 0x07;
+		int e = (param >> 6) & 0x03;
+		long t = T0_NSEC * ((b + 1) * n + (a + 1));
+		return (t << (2 * e)) / 1000;
+	}
+
+	/**
+	 * Blocks one Write Without Encryption may carry (Nbw).
+	 */
+	public int getMaxWriteBlocks() {
+		switch (getIcType()) {
+		case IC_TYPE_LITE:
+		case IC_TYPE_LITE_S:
+			return NBW_LITE;
+		default:
+			return NBW_DEFAULT;
+		}
+	}
+
+	/**
+	 * Timeout [msec] for a raw FeliCa frame ([LEN][CMD]...), including margin.
+	 *
+	 * @return		timeout, or -1 if the frame cannot be decoded
+	 */
+	public int commandTimeout(byte[] frame) {
+		if ((frame == null) || (frame.length < 2)) {
+			return -1;
+		}
+		int pos;
+		int n;
+		switch (frame[1]) {
+		case CMD_REQUEST_SERVICE:
+			pos = POS_REQUEST_SERVICE;
+			n = paramAt(frame, POS_PARAM);
+			break;
+		case CMD_AUTHENTICATION1: {
+			// [areas m][area codes 2m][services k][service codes 2k]
+			pos = POS_AUTH;
+			int areas = paramAt(frame, POS_PARAM);
+			int services = (areas < 0) ? -1 : paramAt(frame, POS_PARAM + 1 + 2 * areas);
+			n = (services < 0) ? -1 : (areas + services);
+			break;
+		}
+		case CMD_AUTHENTICATION2:
+			pos = POS_AUTH;
+			n = 0;
+			break;
+		case CMD_READ_WO_ENCRYPTION:
+		case CMD_READ:
+			pos = POS_READ;
+			n = blockCount(frame);
+			break;
+		case CMD_WRITE_WO_ENCRYPTION:
+		case CMD_WRITE:
+			pos = POS_WRITE;
+			n = blockCount(frame);
+			break;
+		case CMD_POLLING:
+		case CMD_REQUEST_RESPONSE:
+		case CMD_SEARCH_SERVICE_CODE:
+		case CMD_REQUEST_SYSTEM_CODE:
+			pos = POS_FIXED;
+			n = 0;
+			break;
+		default:
+			pos = POS_OTHER;
+			n = 0;
+			break;
+		}
+		if (n < 0) {
+			return -1;
+		}
+		long usec = responseTimeUsec(pos, n);
+		return (int)((usec + 999) / 1000) + MARGIN_MSEC;
+	}
+
+	/**
+	 * Number of blocks in a Read/Write frame:
+	 * [LEN][CMD][IDm][services m][service codes 2m][blocks n]...
+	 */
+	private static int blockCount(byte[] frame) {
+		int services = paramAt(frame, POS_PARAM);
+		if (services < 0) {
+			return -1;
+		}
+		return paramAt(frame, POS_PARAM + 1 + 2 * services);
+	}
+
+	private static int paramAt(byte[] frame, int pos) {
+		if (pos >= frame.length) {
+			return -1;
+		}
+		return frame[pos] & 0xff;
+	}
+}
@@ -0,0 +1,675 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.hiro99ma;
+
+import android.nfc.tech.TagTechnology;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.nfc.DumpBuilder;
+
+/**
+ * FeliCa (NFC-F) command exchange for one card.
+ *
+ * <p>Raw frames ([LEN][CMD]...) go through CommunicateThruEX, with the
+ * timeout taken from the card's PMm. {@link #read(int[], int[])} packs
+ * (service, block) pairs into as few Read Without Encryption commands as
+ * the card's Nbr and the 16-service limit allow.
+ *
+ * <p>{@link #requestSystemCodes()} and {@link #searchServiceCodes(int)}
+ * enumerate the card layout once per IDm + PMm; see {@link FelicaLayoutCache}.
+ *
+ * <p>With read-ahead on ({@link #setReadAhead(boolean)}), raw frames go
+ * through {@link #transceiveRaw(byte[])}. Two single-block Read Without
+ * Encryption commands for consecutive blocks of a random or cyclic service
+ * make it fetch the following blocks in one multi-block command. Later
+ * requests for those blocks are answered from memory, but only while the
+ * card is still the PCD's current target. Any command other than Read
+ * Without Encryption drops the prefetched data, so a write is never hidden
+ * behind a stale block.
+ *
+ * <p>{@link #writeBuffered(int, int, byte[])} collects block writes, and
+ * {@link #flushWrites()} sends them as Write Without Encryption commands of
+ * up to Nbw blocks. Pending writes are flushed before any read or raw frame,
+ * so the card is up to date before anything can observe it. Ordering and
+ * atomicity:
+ * <ul>
+ * <li>blocks are written in the order they were first buffered; buffering
+ *     the same block again replaces its data and keeps its position
+ * <li>the card writes all blocks of one command or none of them, but a
+ *     flush spanning several commands is not atomic
+ * <li>if a command fails, it and all later pending writes are dropped and
+ *     the flush reports failure; earlier commands stay written
+ * <li>writes still pending when the card leaves are lost
+ * </ul>
+ */
+final class FelicaTag {
+	private static final String TAG = "FelicaTag";
+
+	public static final int BLOCK_SIZE = 16;
+
+	/// [LEN][CMD][IDm]
+	private static final int POS_LEN = 0;
+	private static final int POS_CMD = 1;
+	private static final int POS_IDM = 2;
+	private static final int SIZE_IDM = 8;
+	private static final int SIZE_HEADER = 2 + SIZE_IDM;
+
+	/// Read Without Encryption response : [header][SF1][SF2][blocks n][data 16n]
+	private static final byte RES_READ_WO_ENCRYPTION = 0x07;
+	private static final int POS_SF1 = SIZE_HEADER;
+	private static final int POS_BLOCKS = SIZE_HEADER + 2;
+	private static final int POS_DATA = SIZE_HEADER + 3;
+
+	private static final int MAX_SERVICES = 16;
+
+	/// Write Without Encryption response : [header][SF1][SF2]
+	private static final byte RES_WRITE_WO_ENCRYPTION = 0x09;
+
+	/// Request System Code response : [header][n][system codes (BE) 2n]
+	private static final byte RES_REQUEST_SYSTEM_CODE = 0x0d;
+	private static final int POS_SYSTEM_NUM = SIZE_HEADER;
+
+	/// Search Service Code response : [header][code (LE)] or [header][area code][end code]
+	private static final byte RES_SEARCH_SERVICE_CODE = 0x0b;
+	private static final int SEARCH_END = 0xffff;
+	private static final int SEARCH_MAX = 0x1000;		// guards against cards that never end
+
+	/// Polling response : [LEN][0x01][IDm][PMm]...
+	private static final byte RES_POLLING = 0x01;
+	private static final int SIZE_POLLING_RES = SIZE_HEADER + FelicaPmm.SIZE_PMM;
+
+	/// block list element : 2 byte form for block numbers up to 255
+	private static final int BLE_2BYTE = 0x80;
+	private static final int BLE_ACCESS_MODE = 0x70;
+	private static final int BLE_ORDER = 0x0f;
+
+	/// service attribute (bit5-0) : random 0x08-0x0b, cyclic 0x0c-0x0f
+	private static final int ATTR_MASK = 0x3f;
+	private static final int ATTR_RANDOM_CYCLIC_MIN = 0x08;
+	private static final int ATTR_RANDOM_CYCLIC_MAX = 0x0f;
+
+	// read-ahead statistics, all endpoints; guarded by sStatsLock
+	private static final Object sStatsLock = new Object();
+	private static int sPrefetched;
+	private static int sPrefetchHits;
+	private static int sPrefetchWasted;
+	private static int sPrefetchFailed;
+	private static int sWriteBlocks;
+	private static int sWriteCommands;
+	private static long sWriteMsec;
+
+	private final NativeNfcManager mManager;
+	private final NfcPcd.NfcId mTarget;
+	private final byte[] mIdm;
+	private final FelicaPmm mPmm;
+	private final int mSystemCode;
+	private final FelicaLayoutCache.Key mLayoutKey;
+	private final byte[] mRes = new byte[NfcPcd.SIZE_RESBUF];
+
+	// read-ahead state
+	private boolean mReadAhead = false;
+	private int mLastService = -1;
+	private int mLastBlock = -1;
+	private int mAheadService = -1;
+	private int mAheadFirst;
+	private byte[][] mAhead;		// null once served
+
+	// pending writes, in order
+	private int[] mWriteServices = new int[0];
+	private int[] mWriteBlocks = new int[0];
+	private byte[][] mWriteData = new byte[0][];
+	private int mWriteCount = 0;
+
+	/**
+	 * @param target		activation the card was polled in
+	 * @param systemCode	system the card was polled for
+	 */
+	FelicaTag(NativeNfcManager manager, NfcPcd.NfcId target, byte[] idm, byte[] pmm, int systemCode) {
+		mManager = manager;
+		mTarget = target;
+		mIdm = new byte[SIZE_IDM];
+		System.arraycopy(idm, 0, mIdm, 0, SIZE_IDM);
+		mPmm = new FelicaPmm(pmm);
+		mSystemCode = systemCode;
+		mLayoutKey = FelicaLayoutCache.key(mIdm, mPmm.getBytes());
+	}
+
+	public FelicaPmm getPmm() {
+		return mPmm;
+	}
+
+	/**
+	 * Exchanges one raw frame.
+	 *
+	 * @return		response frame, or null on failure
+	 */
+	public byte[] transceive(byte[] frame) {
+		int[] len = new int[1];
+		short timeout = NfcPcd.msecToTimeout(commandTimeout(frame));
+		if (!NfcPcd.communicateThruEx(timeout, frame, frame.length, mRes, len)) {
+			return null;
+		}
+		byte[] res = new byte[len[0]];
+		System.arraycopy(mRes, 0, res, 0, len[0]);
+		return res;
+	}
+
+	public void setReadAhead(boolean on) {
+		mReadAhead = on;
+		if (!on) {
+			dropReadAhead();
+		}
+	}
+
+	/**
+	 * {@link #transceive(byte[])} for frames from the app, with read-ahead
+	 * applied when it is on.
+	 */
+	public byte[] transceiveRaw(byte[] frame) {
+		if (!flushWrites()) {
+			return null;
+		}
+		if (!mReadAhead) {
+			return transceive(frame);
+		}
+
+		// [LEN][0x06][IDm][1][SC (LE)][1][block list element]
+		int service = -1;
+		int block = -1;
+		if ((frame.length >= SIZE_HEADER + 6) && (frame[POS_CMD] == FelicaPmm.CMD_READ_WO_ENCRYPTION)
+		  && (frame[SIZE_HEADER] == 1) && (frame[SIZE_HEADER + 3] == 1)
+		  && NfcPcd.MemCmp(frame, mIdm, SIZE_IDM, POS_IDM, 0)) {
+			int sc = (frame[SIZE_HEADER + 1] & 0xff) | ((frame[SIZE_HEADER + 2] & 0xff) << 8);
+			int ble = frame[SIZE_HEADER + 4] & 0xff;
+			int attr = sc & ATTR_MASK;
+			if (((ble & (BLE_ACCESS_MODE | BLE_ORDER)) == 0)
+			  && (attr >= ATTR_RANDOM_CYCLIC_MIN) && (attr <= ATTR_RANDOM_CYCLIC_MAX)) {
+				service = sc;
+				if ((ble & BLE_2BYTE) != 0) {
+					block = frame[SIZE_HEADER + 5] & 0xff;
+				} else if (frame.length >= SIZE_HEADER + 7) {
+					block = (frame[SIZE_HEADER + 5] & 0xff) | ((frame[SIZE_HEADER + 6] & 0xff) << 8);
+				}
+			}
+		}
+		if (block < 0) {
+			if (frame[POS_CMD] != FelicaPmm.CMD_READ_WO_ENCRYPTION) {
+				dropReadAhead();
+			}
+			mLastService = -1;
+			return transceive(frame);
+		}
+
+		if ((mAhead != null) && (mManager.getCurrentTarget() != mTarget)) {
+			// the card has left; never answer for it from memory
+			dropReadAhead();
+			return transceive(frame);
+		}
+
+		boolean sequential = (service == mLastService) && (block == mLastBlock + 1);
+		mLastService = service;
+		mLastBlock = block;
+
+		byte[] data = takeReadAhead(service, block);
+		if ((data == null) && sequential) {
+			data = fetchReadAhead(service, block);
+		}
+		if (data == null) {
+			return transceive(frame);
+		}
+
+		// [LEN][0x07][IDm][SF1 0][SF2 0][1][data]
+		byte[] res = new byte[POS_DATA + BLOCK_SIZE];
+		res[POS_LEN] = (byte)res.length;
+		res[POS_CMD] = RES_READ_WO_ENCRYPTION;
+		System.arraycopy(mIdm, 0, res, POS_IDM, SIZE_IDM);
+		res[POS_BLOCKS] = 1;
+		System.arraycopy(data, 0, res, POS_DATA, BLOCK_SIZE);
+		return res;
+	}
+
+	private byte[] takeReadAhead(int service, int block) {
+		if ((mAhead == null) || (service != mAheadService)) {
+			return null;
+		}
+		int index = block - mAheadFirst;
+		if ((index < 0) || (index >= mAhead.length) || (mAhead[index] == null)) {
+			return null;
+		}
+		byte[] data = mAhead[index];
+		mAhead[index] = null;
+		synchronized (sStatsLock) {
+			sPrefetchHits++;
+		}
+		return data;
+	}
+
+	/**
+	 * Reads block and the ones after it in one command; returns block.
+	 * Returns null (and the caller sends the app's frame as is) if the card
+	 * rejects the range, e.g. because it runs past the end of the service.
+	 */
+	private byte[] fetchReadAhead(int service, int block) {
+		dropReadAhead();
+		int n = Math.min(mPmm.getMaxReadBlocks(), 0x10000 - block);
+		if (n < 2) {
+			return null;
+		}
+		int[] services = new int[n];
+		int[] blocks = new int[n];
+		for (int i = 0; i < n; i++) {
+			services[i] = service;
+			blocks[i] = block + i;
+		}
+		byte[][] data = read(services, blocks);
+		if ((data == null) || (data[0] == null)) {
+			// the exchange was spent and the app's frame goes out again
+			synchronized (sStatsLock) {
+				sPrefetched += n - 1;
+				sPrefetchWasted += n - 1;
+				sPrefetchFailed++;
+			}
+			return null;
+		}
+		byte[] first = data[0];
+		data[0] = null;
+		mAheadService = service;
+		mAheadFirst = block;
+		mAhead = data;
+		synchronized (sStatsLock) {
+			sPrefetched += n - 1;
+		}
+		return first;
+	}
+
+	private void dropReadAhead() {
+		if (mAhead != null) {
+			int unused = 0;
+			for (byte[] data : mAhead) {
+				if (data != null) {
+					unused++;
+				}
+			}
+			synchronized (sStatsLock) {
+				sPrefetchWasted += unused;
+			}
+			mAhead = null;
+		}
+		mAheadService = -1;
+	}
+
+	/** Called when the endpoint goes away; counts what was never used. */
+	public void close() {
+		dropReadAhead();
+		if (mWriteCount > 0) {
+			Log.d(TAG, "close : " + mWriteCount + " writes lost");
+			mWriteCount = 0;
+		}
+	}
+
+	/**
+	 * Buffers one block write; see the class comment for when it reaches
+	 * the card.
+	 */
+	public boolean writeBuffered(int service, int block, byte[] data) {
+		if ((data == null) || (data.length != BLOCK_SIZE) || (block < 0) || (block > 0xffff)) {
+			return false;
+		}
+		for (int i = 0; i < mWriteCount; i++) {
+			if ((mWriteServices[i] == service) && (mWriteBlocks[i] == block)) {
+				mWriteData[i] = data.clone();
+				return true;
+			}
+		}
+		if (mWriteCount == mWriteBlocks.length) {
+			int size = Math.max(8, 2 * mWriteCount);
+			int[] services = new int[size];
+			int[] blocks = new int[size];
+			byte[][] datas = new byte[size][];
+			System.arraycopy(mWriteServices, 0, services, 0, mWriteCount);
+			System.arraycopy(mWriteBlocks, 0, blocks, 0, mWriteCount);
+			System.arraycopy(mWriteData, 0, datas, 0, mWriteCount);
+			mWriteServices = services;
+			mWriteBlocks = blocks;
+			mWriteData = datas;
+		}
+		mWriteServices[mWriteCount] = service;
+		mWriteBlocks[mWriteCount] = block;
+		mWriteData[mWriteCount] = data.clone();
+		mWriteCount++;
+		return true;
+	}
+
+	/**
+	 * Sends all pending writes.
+	 *
+	 * @return		true if nothing was pending or every command succeeded
+	 */
+	public boolean flushWrites() {
+		if (mWriteCount == 0) {
+			return true;
+		}
+		dropReadAhead();
+
+		long start = SystemClock.elapsedRealtime();
+		int maxBlocks = mPmm.getMaxWriteBlocks();
+		int[] services = new int[MAX_SERVICES];
+		int[] serviceNum = new int[1];
+		int commands = 0;
+		int pos = 0;
+		boolean ret = true;
+		while (pos < mWriteCount) {
+			int end = pack(mWriteServices, pos, mWriteCount, maxBlocks, services, serviceNum);
+			int dataLen = (end - pos) * BLOCK_SIZE;
+			byte[] frame = blockListCommand(FelicaPmm.CMD_WRITE_WO_ENCRYPTION,
+					services, serviceNum[0], mWriteServices, mWriteBlocks, pos, end, dataLen);
+			for (int i = pos; i < end; i++) {
+				System.arraycopy(mWriteData[i], 0, frame,
+						frame.length - dataLen + (i - pos) * BLOCK_SIZE, BLOCK_SIZE);
+			}
+			byte[] res = transceive(frame);
+			commands++;
+			if ((res == null) || (res.length < POS_SF1 + 2)
+			  || (res[POS_CMD] != RES_WRITE_WO_ENCRYPTION) || (res[POS_SF1] != 0x00)) {
+				Log.d(TAG, "flushWrites : failed at " + pos + "/" + mWriteCount);
+				ret = false;
+				break;
+			}
+			pos = end;
+		}
+		synchronized (sStatsLock) {
+			sWriteBlocks += pos;
+			sWriteCommands += commands;
+			sWriteMsec += SystemClock.elapsedRealtime() - start;
+		}
+		for (int i = 0; i < mWriteCount; i++) {
+			mWriteData[i] = null;
+		}
+		mWriteCount = 0;
+		return ret;
+	}
+
+	static void dumpStats(DumpBuilder d) {
+		synchronized (sStatsLock) {
+			d.put("readahead_prefetched", sPrefetched);
+			d.put("readahead_hits", sPrefetchHits);
+			d.put("readahead_wasted", sPrefetchWasted);
+			d.put("readahead_failed", sPrefetchFailed);
+			d.put("write_blocks", sWriteBlocks);
+			d.put("write_commands", sWriteCommands);
+			d.put("write_ms", sWriteMsec);
+		}
+	}
+
+	/**
+	 * Timeout [msec] for one frame: as long as the PMm says the command may
+	 * take, bounded by the timeout set for NFC-F.
+	 */
+	private int commandTimeout(byte[] frame) {
+		int timeout = mManager.getTimeout(TagTechnology.NFC_F);
+		int budget = mPmm.commandTimeout(frame);
+		if ((budget > 0) && (budget < timeout)) {
+			timeout = budget;
+		}
+		return timeout;
+	}
+
+	/**
+	 * Reads blocks with Read Without Encryption.
+	 *
+	 * @param serviceCodes	service code of each block
+	 * @param blocks		block number of each block (0..65535)
+	 * @return				16 bytes per requested block, in request order; an
+	 *						entry is null if the card rejected its command.
+	 *						null if the card stopped answering.
+	 */
+	public byte[][] read(int[] serviceCodes, int[] blocks) {
+		if (!flushWrites()) {
+			return null;
+		}
+		byte[][] result = new byte[blocks.length][];
+		int maxBlocks = mPmm.getMaxReadBlocks();
+		int[] services = new int[MAX_SERVICES];
+		int[] serviceNum = new int[1];
+		int pos = 0;
+		while (pos < blocks.length) {
+			int end = pack(serviceCodes, pos, blocks.length, maxBlocks, services, serviceNum);
+			byte[] frame = blockListCommand(FelicaPmm.CMD_READ_WO_ENCRYPTION,
+					services, serviceNum[0], serviceCodes, blocks, pos, end, 0);
+			byte[] res = transceive(frame);
+			if (res == null) {
+				return null;
+			}
+			int n = end - pos;
+			if ((res.length < POS_DATA) || (res[POS_CMD] != RES_READ_WO_ENCRYPTION)) {
+				return null;
+			}
+			if ((res[POS_SF1] == 0x00) && ((res[POS_BLOCKS] & 0xff) == n)
+			  && (res.length >= POS_DATA + n * BLOCK_SIZE)) {
+				for (int i = 0; i < n; i++) {
+					result[pos + i] = new byte[BLOCK_SIZE];
+					System.arraycopy(res, POS_DATA + i * BLOCK_SIZE, result[pos + i], 0, BLOCK_SIZE);
+				}
+			} else {
+				Log.d(TAG, "read : status " + res[POS_SF1] + "/" + res[POS_SF1 + 1]);
+			}
+			pos = end;
+		}
+		return result;
+	}
+
+	/**
+	 * Picks the pairs from pos on that fit one command: at most maxBlocks
+	 * blocks and {@link #MAX_SERVICES} services.
+	 *
+	 * @param services		[out] distinct services of the command
+	 * @param serviceNum	[out] number of entries in services
+	 * @return				end (exclusive) of the pairs taken
+	 */
+	private static int pack(int[] serviceCodes, int pos, int count, int maxBlocks,
+			int[] services, int[] serviceNum) {
+		serviceNum[0] = 0;
+		int end = pos;
+		while ((end < count) && (end - pos < maxBlocks)) {
+			if (indexOf(services, serviceNum[0], serviceCodes[end]) == -1) {
+				if (serviceNum[0] == MAX_SERVICES) {
+					break;
+				}
+				services[serviceNum[0]++] = serviceCodes[end];
+			}
+			end++;
+		}
+		return end;
+	}
+
+	/**
+	 * [LEN][cmd][IDm][m][service codes (LE)][n][block list] followed by
+	 * dataLen bytes left for the caller at the end of the frame.
+	 */
+	private byte[] blockListCommand(byte cmd, int[] services, int serviceNum,
+			int[] serviceCodes, int[] blocks, int start, int end, int dataLen) {
+		byte[] frame = header(cmd, mIdm, 1 + 2 * serviceNum + 1 + 3 * (end - start) + dataLen);
+		int len = SIZE_HEADER;
+		frame[len++] = (byte)serviceNum;
+		for (int i = 0; i < serviceNum; i++) {
+			frame[len++] = (byte)services[i];
+			frame[len++] = (byte)(services[i] >> 8);
+		}
+		frame[len++] = (byte)(end - start);
+		for (int i = start; i < end; i++) {
+			int order = indexOf(services, serviceNum, serviceCodes[i]);
+			if (blocks[i] <= 0xff) {
+				frame[len++] = (byte)(BLE_2BYTE | order);
+				frame[len++] = (byte)blocks[i];
+			} else {
+				frame[len++] = (byte)order;
+				frame[len++] = (byte)blocks[i];
+				frame[len++] = (byte)(blocks[i] >> 8);
+			}
+		}
+		len += dataLen;
+		frame[POS_LEN] = (byte)len;
+		if (len == frame.length) {
+			return frame;
+		}
+		byte[] trimmed = new byte[len];
+		System.arraycopy(frame, 0, trimmed, 0, len - dataLen);
+		return trimmed;
+	}
+
+	/**
+	 * System codes on the card (Request System Code).
+	 *
+	 * @return		system codes, or null on failure
+	 */
+	public int[] requestSystemCodes() {
+		int[] codes = FelicaLayoutCache.getSystemCodes(mLayoutKey);
+		if (codes == null) {
+			long start = SystemClock.elapsedRealtime();
+			byte[] res = transceive(header(FelicaPmm.CMD_REQUEST_SYSTEM_CODE, mIdm, 0));
+			FelicaLayoutCache.recordEnumeration(1, SystemClock.elapsedRealtime() - start);
+			if ((res == null) || (res.length <= POS_SYSTEM_NUM)
+			  || (res[POS_CMD] != RES_REQUEST_SYSTEM_CODE)) {
+				return null;
+			}
+			int n = res[POS_SYSTEM_NUM] & 0xff;
+			if (res.length < POS_SYSTEM_NUM + 1 + 2 * n) {
+				return null;
+			}
+			codes = new int[n];
+			for (int i = 0; i < n; i++) {
+				int pos = POS_SYSTEM_NUM + 1 + 2 * i;
+				codes[i] = ((res[pos] & 0xff) << 8) | (res[pos + 1] & 0xff);
+			}
+			FelicaLayoutCache.putSystemCodes(mLayoutKey, codes);
+		}
+		return codes.clone();
+	}
+
+	/**
+	 * Area and service codes of a system (Search Service Code), in card
+	 * order. An area is returned as (end code << 16) | area code, and a
+	 * service as its code; the attribute bits tell the two apart.
+	 *
+	 * <p>A system other than the polled one is selected with Polling, and
+	 * the polled system is selected again afterwards.
+	 *
+	 * @return		codes, or null on failure
+	 */
+	public int[] searchServiceCodes(int systemCode) {
+		int[] codes = FelicaLayoutCache.getServices(mLayoutKey, systemCode);
+		if (codes != null) {
+			return codes.clone();
+		}
+
+		long start = SystemClock.elapsedRealtime();
+		int[] commands = new int[1];
+		byte[] idm = mIdm;
+		if (systemCode != mSystemCode) {
+			idm = poll(systemCode, commands);
+		}
+		if (idm != null) {
+			codes = searchServiceCodes(idm, commands);
+		}
+		if (systemCode != mSystemCode) {
+			poll(mSystemCode, commands);
+		}
+		FelicaLayoutCache.recordEnumeration(commands[0], SystemClock.elapsedRealtime() - start);
+
+		if (codes == null) {
+			return null;
+		}
+		FelicaLayoutCache.putServices(mLayoutKey, systemCode, codes);
+		return codes.clone();
+	}
+
+	private int[] searchServiceCodes(byte[] idm, int[] commands) {
+		int[] codes = new int[32];
+		int num = 0;
+		for (int index = 0; index < SEARCH_MAX; index++) {
+			byte[] frame = header(FelicaPmm.CMD_SEARCH_SERVICE_CODE, idm, 2);
+			frame[SIZE_HEADER] = (byte)index;
+			frame[SIZE_HEADER + 1] = (byte)(index >> 8);
+			byte[] res = transceive(frame);
+			commands[0]++;
+			if ((res == null) || (res.length < SIZE_HEADER + 2)
+			  || (res[POS_CMD] != RES_SEARCH_SERVICE_CODE)) {
+				return null;
+			}
+			int code = (res[SIZE_HEADER] & 0xff) | ((res[SIZE_HEADER + 1] & 0xff) << 8);
+			if (code == SEARCH_END) {
+				break;
+			}
+			if (res.length >= SIZE_HEADER + 4) {
+				// area : end code follows
+				int endCode = (res[SIZE_HEADER + 2] & 0xff) | ((res[SIZE_HEADER + 3] & 0xff) << 8);
+				code |= endCode << 16;
+			}
+			if (num == codes.length) {
+				int[] grown = new int[2 * num];
+				System.arraycopy(codes, 0, grown, 0, num);
+				codes = grown;
+			}
+			codes[num++] = code;
+		}
+		int[] result = new int[num];
+		System.arraycopy(codes, 0, result, 0, num);
+		return result;
+	}
+
+	/**
+	 * Polls one system with a raw Polling frame, which leaves the PCD's
+	 * current target as it is.
+	 *
+	 * @return		IDm of that system, or null
+	 */
+	private byte[] poll(int systemCode, int[] commands) {
+		byte[] frame = new byte[] {
+			0x06, FelicaPmm.CMD_POLLING,
+			(byte)(systemCode >> 8), (byte)systemCode,
+			0x00,		// no request data
+			0x00,		// time slot
+		};
+		byte[] res = transceive(frame);
+		commands[0]++;
+		if ((res == null) || (res.length < SIZE_POLLING_RES) || (res[POS_CMD] != RES_POLLING)) {
+			return null;
+		}
+		byte[] idm = new byte[SIZE_IDM];
+		System.arraycopy(res, POS_IDM, idm, 0, SIZE_IDM);
+		return idm;
+	}
+
+	/** [LEN][cmd][IDm] followed by params bytes left for the caller */
+	private static byte[] header(byte cmd, byte[] idm, int params) {
+		byte[] frame = new byte[SIZE_HEADER + params];
+		frame[POS_LEN] = (byte)frame.length;
+		frame[POS_CMD] = cmd;
+		System.arraycopy(idm, 0, frame, POS_IDM, SIZE_IDM);
+		return frame;
+	}
+
+	private static int indexOf(int[] array, int count, int value) {
+		for (int i = 0; i < count; i++) {
+			if (array[i] == value) {
+				return i;
+			}
+		}
+		return -1;
+	}
+}
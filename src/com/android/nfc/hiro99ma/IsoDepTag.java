@@ -0,0 +1,229 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.hiro99ma;
+
+import android.os.Bundle;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * ISO 14443-4 (ISO-DEP) APDU exchange over InDataExchange.
+ *
+ * <p>The PCD already sends RATS during activation and handles the I-block
+ * chaining towards the card for each frame size. This class handles the host
+ * side. A command APDU longer than one host frame goes out in
+ * {@link NfcPcd#SIZE_DEP_DATA} chunks with the MI bit set. A response that
+ * does not fit one host frame is fetched with empty exchanges until the PCD
+ * clears MI. Extended-length APDUs therefore need no looping in the app.
+ *
+ * <p>Before the first APDU, {@link #negotiate()} sends InPSL for the fastest
+ * rates both sides support. This is left until an app actually exchanges
+ * APDUs, so cards nobody talks to cost no RF exchange at discovery. FSCI and the divisors come from the ATS on
+ * Type A, and from the ATQB protocol info on Type B, which uses the same
+ * divisor layout. The PCD picks FSDI itself for its automatic RATS and
+ * ATTRIB, so the host cannot negotiate FSD.
+ */
+final class IsoDepTag {
+	private static final String TAG = "IsoDepTag";
+
+	/// ATS
+	private static final int ATS_T0 = 1;
+	private static final int ATS_TA = 2;
+	private static final int T0_FSCI = 0x0f;
+	private static final int T0_TA = 0x10;
+	private static final int T0_TB = 0x20;
+	private static final int T0_TC = 0x40;
+
+	/// ATQB protocol info
+	private static final int PROTINFO_RATE = 0;
+	private static final int PROTINFO_FSCI = 1;
+
+	/// TA(1) / ATQB bit rate : DS (PICC to PCD) in bit6-4, DR (PCD to PICC) in bit2-0
+	private static final int TA_SAME_D = 0x80;
+	private static final int RATE_212 = 0x01;
+	private static final int RATE_424 = 0x02;
+	private static final int RATE_848 = 0x04;
+	private static final int PCD_RATES = RATE_212 | RATE_424 | RATE_848;
+
+	private static final int[] FSC_TABLE = { 16, 24, 32, 40, 48, 64, 96, 128, 256 };
+
+	/// tag extras
+	public static final String EXTRA_FSC = "fsc";
+	public static final String EXTRA_BITRATE_PCD_TO_PICC = "bitratepcdtopicc";	///< kbps
+	public static final String EXTRA_BITRATE_PICC_TO_PCD = "bitratepicctopcd";	///< kbps
+
+	/** Command + response limit for extended-length APDUs. */
+	public static final int MAX_TRANSCEIVE_LENGTH = 0xfeff;
+
+	private final int mFsc;
+	private final int mDivisors;
+	private final byte[] mRes = new byte[NfcPcd.SIZE_DEP_RESBUF];
+
+	private byte mBrIt = NfcPcd.BR_106K;
+	private byte mBrTi = NfcPcd.BR_106K;
+	private boolean mNegotiated = false;
+
+	private IsoDepTag(int fsci, int divisors) {
+		mFsc = FSC_TABLE[Math.min(fsci, FSC_TABLE.length - 1)];
+		mDivisors = divisors;
+	}
+
+	/**
+	 * @param ats	ATS including TL, as returned during activation
+	 */
+	static IsoDepTag forTypeA(byte[] ats) {
+		int t0 = (ats.length > ATS_T0) ? (ats[ATS_T0] & 0xff) : 0x02;	// FSCI 2 by default
+		int ta = (((t0 & T0_TA) != 0) && (ats.length > ATS_TA)) ? (ats[ATS_TA] & 0xff) : 0x00;
+		return new IsoDepTag(t0 & T0_FSCI, ta);
+	}
+
+	/**
+	 * @param protInfo	protocol info of the ATQB (3 bytes)
+	 */
+	static IsoDepTag forTypeB(byte[] protInfo) {
+		int fsci = (protInfo[PROTINFO_FSCI] >> 4) & 0x0f;
+		return new IsoDepTag(fsci, protInfo[PROTINFO_RATE] & 0xff);
+	}
+
+	/**
+	 * Switches to the fastest bit rates the card and the PCD share. Must be
+	 * called before the first I-block. The card stays at 106 kbps if PPS
+	 * fails.
+	 */
+	private boolean negotiate() {
+		int dr = mDivisors & PCD_RATES;
+		int ds = (mDivisors >> 4) & PCD_RATES;
+		if ((mDivisors & TA_SAME_D) != 0) {
+			dr &= ds;
+			ds = dr;
+		}
+		byte brIt = bestRate(dr);
+		byte brTi = bestRate(ds);
+		if ((brIt == NfcPcd.BR_106K) && (brTi == NfcPcd.BR_106K)) {
+			return true;
+		}
+		if (!NfcPcd.inPsl(brIt, brTi)) {
+			return false;
+		}
+		mBrIt = brIt;
+		mBrTi = brTi;
+		Log.d(TAG, "PPS : " + getBitRate(mBrIt) + "/" + getBitRate(mBrTi) + "kbps, FSC " + mFsc);
+		return true;
+	}
+
+	private static byte bestRate(int rates) {
+		if ((rates & RATE_848) != 0) return NfcPcd.BR_847K;
+		if ((rates & RATE_424) != 0) return NfcPcd.BR_424K;
+		if ((rates & RATE_212) != 0) return NfcPcd.BR_212K;
+		return NfcPcd.BR_106K;
+	}
+
+	private static int getBitRate(byte br) {
+		return 106 << br;
+	}
+
+	/**
+	 * Puts the frame size and bit rates into the IsoDep extras. The rates
+	 * are 106 kbps until the first APDU has been exchanged.
+	 */
+	public void putExtras(Bundle extras) {
+		extras.putInt(EXTRA_FSC, mFsc);
+		extras.putInt(EXTRA_BITRATE_PCD_TO_PICC, getBitRate(mBrIt));
+		extras.putInt(EXTRA_BITRATE_PICC_TO_PCD, getBitRate(mBrTi));
+	}
+
+	/** Historical bytes of an ATS (for IsoDep.EXTRA_HIST_BYTES). */
+	static byte[] historicalBytes(byte[] ats) {
+		int pos = ATS_T0;
+		if (ats.length > ATS_T0) {
+			int t0 = ats[ATS_T0] & 0xff;
+			pos++;
+			if ((t0 & T0_TA) != 0) pos++;
+			if ((t0 & T0_TB) != 0) pos++;
+			if ((t0 & T0_TC) != 0) pos++;
+		}
+		int len = Math.max(0, ats.length - pos);
+		byte[] hist = new byte[len];
+		System.arraycopy(ats, ats.length - len, hist, 0, len);
+		return hist;
+	}
+
+	/** Higher layer response of an ATTRIB_RES (for IsoDep.EXTRA_HI_LAYER_RESP). */
+	static byte[] higherLayerResponse(byte[] attribRes) {
+		// [MBLI | CID][higher layer response]
+		int len = Math.max(0, attribRes.length - 1);
+		byte[] resp = new byte[len];
+		System.arraycopy(attribRes, attribRes.length - len, resp, 0, len);
+		return resp;
+	}
+
+	/**
+	 * Exchanges one APDU.
+	 *
+	 * @param timeout	per-frame timeout [msec], from IsoDep.setTimeout()
+	 * @return		response APDU, or null on failure
+	 */
+	public byte[] transceive(byte[] apdu, int timeout) {
+		// InDataExchange uses the same non-DEP timing as InCommunicateThru
+		if (!NfcPcd.setCommunicationTimeout(timeout)) {
+			return null;
+		}
+		if (!mNegotiated) {
+			// once per activation, whatever the outcome
+			mNegotiated = true;
+			if (!negotiate()) {
+				Log.d(TAG, "PPS failed, staying at 106kbps");
+			}
+		}
+		int[] resLen = new int[1];
+		boolean[] more = new boolean[1];
+
+		// command : host chaining
+		int pos = 0;
+		do {
+			int len = Math.min(apdu.length - pos, NfcPcd.SIZE_DEP_DATA);
+			boolean last = (pos + len == apdu.length);
+			if (!NfcPcd.inDataExchange(apdu, pos, len, mRes, resLen, !last, more)) {
+				return null;
+			}
+			pos += len;
+		} while (pos < apdu.length);
+
+		if (!more[0]) {
+			// the common case : one frame each way
+			byte[] res = new byte[resLen[0]];
+			System.arraycopy(mRes, 0, res, 0, resLen[0]);
+			return res;
+		}
+
+		// response : fetch the rest
+		ByteArrayOutputStream out = new ByteArrayOutputStream(2 * NfcPcd.SIZE_DEP_RESBUF);
+		out.write(mRes, 0, resLen[0]);
+		while (more[0]) {
+			if (!NfcPcd.inDataExchange(mRes, 0, 0, mRes, resLen, false, more)) {
+				return null;
+			}
+			if (out.size() + resLen[0] > MAX_TRANSCEIVE_LENGTH) {
+				Log.e(TAG, "response too long");
+				return null;
+			}
+			out.write(mRes, 0, resLen[0]);
+		}
+		return out.toByteArray();
+	}
+}
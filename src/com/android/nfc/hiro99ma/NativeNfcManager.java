@@ -17,8 +17,11 @@
 package com.android.nfc.hiro99ma;
 
 import com.android.nfc.DeviceHost;
+import com.android.nfc.DumpBuilder;
+import com.android.nfc.EventLogTags;
 import com.android.nfc.LlcpException;
 import com.android.nfc.NfcService;
+import com.android.nfc.TapTracer;
 import com.android.nfc.hiro99ma.NativeNfcTag;
 
 import android.annotation.SdkConstant;
@@ -30,7 +33,10 @@ import android.nfc.tech.Ndef;
 import android.nfc.tech.TagTechnology;
 import android.util.Log;
 import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
 import android.os.Message;
+import android.os.SystemClock;
 
 
 //for NfcPcd
@@ -62,13 +68,33 @@ public class NativeNfcManager implements DeviceHost {
 	private final DeviceHostListener mListener;
 	private final Context mContext;
 
-	private boolean mPresence = false;
+	private volatile boolean mPresence = false;
 
-	private NativeNfcTag mTag = new NativeNfcTag();
+	// 最後に検出したターゲット。検出ごとに差し替わり、中身は変更されない
+	private volatile NfcPcd.NfcId mCurrent;
+
+	// poll統計 : PollHandlerだけが更新する
+	private volatile int mPollCycles;
+	private volatile int mPollHitsF;
+	private volatile int mPollHitsA;
+	private volatile int mPollHitsB;
+	private volatile int mRemovals;
+
+	// 起動計測 : initialize()開始から最初のpoll完了まで[msec]
+	private volatile long mInitStart;
+	private volatile long mFirstPollMs = -1;
+	private volatile long mInitMs = -1;
+
+	// Transceive timeouts [msec], indexed by TagTechnology; guarded by itself
+	private final int[] mTimeouts = new int[TIMEOUT_TECH_MAX + 1];
 
 	public NativeNfcManager(Context context, DeviceHostListener listener) {
 		mListener = listener;
 		mContext = context;
+		resetTimeouts();
+		HandlerThread pollThread = new HandlerThread("NfcPoll");
+		pollThread.start();
+		mHandler = new PollHandler(pollThread.getLooper());
 	}
 
 	@Override
@@ -79,6 +105,8 @@ public class NativeNfcManager implements DeviceHost {
 	@Override
 	public boolean initialize() {
 		boolean ret = false;
+		mInitStart = SystemClock.elapsedRealtime();
+		mFirstPollMs = -1;
 
 		//NfcPcd
 		UsbManager mgr = (UsbManager)mContext.getSystemService(Context.USB_SERVICE);
@@ -87,6 +115,7 @@ public class NativeNfcManager implements DeviceHost {
 			mContext.registerReceiver(mUsbReceiver, filter);
 			ret = true;
 		}
+		mInitMs = SystemClock.elapsedRealtime() - mInitStart;
 		return ret;
 	}
 
@@ -117,8 +146,13 @@ public class NativeNfcManager implements DeviceHost {
 
 	private final static int MSG_POLL = 1;
 	private final static int INTERVAL = 1000;	//msec
+	private final static int STATS_CYCLES = 60;	//poll統計をevent logに出す周期
 	private final class PollHandler extends Handler {
-		boolean mPolling = false;
+		volatile boolean mPolling = false;
+
+		PollHandler(Looper looper) {
+			super(looper);
+		}
 
 		@Override
 		public void dispatchMessage(Message msg) {
@@ -126,56 +160,114 @@ public class NativeNfcManager implements DeviceHost {
 				return;
 			}
 			if((mPolling == true) && (msg.what == MSG_POLL)) {
-				byte[] res = new byte[NfcPcd.GGS_LEN];
-				boolean bGGS = NfcPcd.getGeneralStatus(res);
-				if(mPresence) {
-					//検出中
-//					byte[] res = new byte[NfcPcd.GGS_LEN];
-//					boolean b = NfcPcd.getGeneralStatus(res);
-					if((bGGS && (res[NfcPcd.GGS_ERR] == 0)) || !bGGS) {
-						//どっかいった
-						Log.d(TAG, "card remove : stst[" + bGGS + "] / field:" + res[NfcPcd.GGS_ERR]);
-						mPresence = false;
-						NfcPcd.rfOff();
-						mListener.onRemoteFieldDeactivated();
-					} else {
-						//まだカードは健在
-					}
-				}
-				if(!mPresence) {
-					//未検出
-					boolean b = NfcPcd.pollingF();
-					if(b) {
-						//カード検出
-						mPresence = true;
-						NfcPcd.NfcId nfcid = (NfcPcd.NfcId)NfcPcd.getNfcId().clone();
-						b = NfcPcd.pollingF(0x12fc);	//Type3
-						if(!b) {
-							//Typ3じゃないなら、元に戻すか
-							NfcPcd.getNfcId().copy(nfcid);
+				boolean removed = false;
+				NativeNfcTag tag = null;
+				//poll周期の間はデバイスロックを持ち、タグI/Oのコマンドを挟ませない
+				//listenerの呼び出しはロックの外
+				synchronized (NfcPcd.class) {
+					byte[] res = new byte[NfcPcd.GGS_LEN];
+					boolean bGGS = NfcPcd.getGeneralStatus(res);
+					if(mPresence) {
+						//検出中
+						if((bGGS && (res[NfcPcd.GGS_ERR] == 0)) || !bGGS) {
+							//どっかいった
+							Log.d(TAG, "card remove : stst[" + bGGS + "] / field:" + res[NfcPcd.GGS_ERR]);
+							mPresence = false;
+							mCurrent = null;
+							mRemovals++;
+							NfcPcd.rfOff();
+							removed = true;
+						} else {
+							//まだカードは健在
 						}
-						nfcid = null;
-						mListener.onRemoteEndpointDiscovered(mTag);
-					} else {
-						NfcPcd.rfOff();
 					}
+					if(!mPresence) {
+						tag = poll();
+					}
+				}
+				if(removed) {
+					mListener.onRemoteFieldDeactivated();
 				}
-				mHandler.sendEmptyMessageDelayed(MSG_POLL, INTERVAL);
+				if((tag != null) && (tag.getTechList().length > 0)) {
+					mListener.onRemoteEndpointDiscovered(tag);
+				}
+				sendEmptyMessageDelayed(MSG_POLL, INTERVAL);
 			} else {
 				super.dispatchMessage(msg);
 			}
 		}
 
+		/**
+		 * 未検出時のpoll 1回分。デバイスロックを持って呼ぶ。
+		 *
+		 * @return		検出したタグ。なければnull
+		 */
+		private NativeNfcTag poll() {
+			mPollCycles++;
+			if((mPollCycles % STATS_CYCLES) == 0) {
+				EventLogTags.writeNfcPollStats(mPollCycles,
+						mPollHitsF + mPollHitsA + mPollHitsB, mRemovals);
+			}
+			final long start = TapTracer.now();
+			String poll = "pollingF";
+			NfcPcd.NfcId id = NfcPcd.pollingF();
+			if(id != null) {
+				NfcPcd.NfcId type3 = NfcPcd.pollingF(0x12fc);	//Type3
+				if(type3 != null) {
+					//Type3じゃないなら、最初の検出結果のまま使う
+					id = type3;
+				}
+			} else {
+				//FeliCaでなければNFC-A、それでもなければNFC-B
+				poll = "pollingA";
+				id = NfcPcd.pollingA();
+				if(id == null) {
+					poll = "pollingB";
+					id = NfcPcd.pollingB();
+				}
+			}
+			if(mFirstPollMs < 0) {
+				//起動後最初のpoll : ここからカードを受け付けられる
+				mFirstPollMs = SystemClock.elapsedRealtime() - mInitStart;
+				Log.i(TAG, "first poll " + mFirstPollMs + "ms after init (usb " + mInitMs + "ms)");
+				EventLogTags.writeNfcFirstPoll((int)mInitMs, (int)mFirstPollMs);
+			}
+			if(id == null) {
+				NfcPcd.rfOff();
+				return null;
+			}
+
+			//カード検出 : 検出ごとに新しいTagEndpoint
+			switch(id.Type) {
+			case NFCID2:	mPollHitsF++;	break;
+			case NFCID1:	mPollHitsA++;	break;
+			default:		mPollHitsB++;	break;
+			}
+			//  tap計測は、カードを見つけたpoll周期の頭から
+			TapTracer.Trace trace = TapTracer.begin(start);
+			long activate = TapTracer.now();
+			trace.span(poll, start, activate);
+			mPresence = true;
+			mCurrent = id;
+			NativeNfcTag tag = new NativeNfcTag(NativeNfcManager.this, id, trace);
+			trace.end("activate", activate);
+			int[] techs = tag.getTechList();
+			EventLogTags.writeNfcTagDiscovered((techs.length > 0) ? techs[0] : -1,
+					id.Id.length, (int)((activate - start) / 1000000));
+			return tag;
+		}
+
 		public void start() {
 			mPolling = true;
-			mHandler.sendEmptyMessage(MSG_POLL);
+			sendEmptyMessage(MSG_POLL);
 		}
 
 		public void stop() {
 			mPolling = false;
 		}
 	}
-	private final PollHandler mHandler = new PollHandler();
+	//pollはタグI/Oを待つことがあるので、mainではなく専用スレッドで回す
+	private final PollHandler mHandler;
 
 	@Override
 	public void enableDiscovery() {
@@ -223,19 +315,91 @@ public class NativeNfcManager implements DeviceHost {
 	}
 
 
+	// TagTechnology.MIFARE_ULTRALIGHT is the highest technology value
+	private static final int TIMEOUT_TECH_MAX = TagTechnology.MIFARE_ULTRALIGHT;
+
+	// CommunicateThruEX carries the timeout as 16bit in 0.5msec units
+	private static final int TIMEOUT_MAX = 0xffff / 2;	//msec
+
+	/**
+	 * Default transceive timeout of a technology.
+	 * These bound how long a lost card can hold the reader (and the calling
+	 * binder thread); apps that know they need longer use setTimeout().
+	 */
+	private static int defaultTimeout(int tech) {
+		switch (tech) {
+			case TagTechnology.NFC_F:
+				return 255;
+			case TagTechnology.ISO_DEP:
+				return 618;
+			case TagTechnology.NFC_A:
+			case TagTechnology.NFC_B:
+			case TagTechnology.NFC_V:
+			case TagTechnology.MIFARE_CLASSIC:
+			case TagTechnology.MIFARE_ULTRALIGHT:
+				return 309;
+			default:
+				return 1000;
+		}
+	}
+
 	@Override
-	public void resetTimeouts() {}
+	public void resetTimeouts() {
+		synchronized (mTimeouts) {
+			for (int tech = 0; tech <= TIMEOUT_TECH_MAX; tech++) {
+				mTimeouts[tech] = defaultTimeout(tech);
+			}
+		}
+	}
 
 	public void doAbort() {}
 
 	@Override
 	public boolean setTimeout(int tech, int timeout) {
-		return false;
+		if ((tech < 0) || (tech > TIMEOUT_TECH_MAX)
+		  || (timeout <= 0) || (timeout > TIMEOUT_MAX)) {
+			return false;
+		}
+		synchronized (mTimeouts) {
+			mTimeouts[tech] = timeout;
+		}
+		return true;
+	}
+
+	/**
+	 * 現在検出中のターゲット
+	 *
+	 * @return		最後のpollで得た検出レコード(未検出ならnull)
+	 */
+	NfcPcd.NfcId getCurrentTarget() {
+		return mCurrent;
+	}
+
+	/**
+	 * 同じカードを再活性化したときに、現在のターゲットを新しい検出レコードに替える
+	 * (NfcPcd.classのロック中に呼ぶこと)
+	 *
+	 * @param	old		再活性化前の検出レコード
+	 * @param	id		再活性化で得た検出レコード
+	 * @retval	true	替えた
+	 * @retval	false	oldはもう現在のターゲットではない
+	 */
+	boolean retarget(NfcPcd.NfcId old, NfcPcd.NfcId id) {
+		if(mCurrent != old) {
+			return false;
+		}
+		mCurrent = id;
+		return true;
 	}
 
 	@Override
 	public int getTimeout(int tech) {
-		return 0;
+		if ((tech < 0) || (tech > TIMEOUT_TECH_MAX)) {
+			return 0;
+		}
+		synchronized (mTimeouts) {
+			return mTimeouts[tech];
+		}
 	}
 
 
@@ -254,16 +418,15 @@ public class NativeNfcManager implements DeviceHost {
 			case (TagTechnology.MIFARE_ULTRALIGHT):
 				return 253; // PN544 RF buffer = 255 bytes, subtract two for CRC
 			case (TagTechnology.NFC_B):
-				return 0; // PN544 does not support transceive of raw NfcB
+				return 253; // InCommunicateThru, CRC_B added by the PCD
 			case (TagTechnology.NFC_V):
 				return 253; // PN544 RF buffer = 255 bytes, subtract two for CRC
 			case (TagTechnology.ISO_DEP):
-				/* The maximum length of a normal IsoDep frame consists of:
-				 * CLA, INS, P1, P2, LC, LE + 255 payload bytes = 261 bytes
-				 * such a frame is supported. Extended length frames however
-				 * are not supported.
+				/* Commands and responses larger than one PCD frame are
+				 * chained over InDataExchange (see IsoDepTag), so extended
+				 * length APDUs are supported.
 				 */
-				return 261; // Will be automatically split in two frames on the RF layer
+				return IsoDepTag.MAX_TRANSCEIVE_LENGTH;
 			case (TagTechnology.NFC_F):
 				return 252; // PN544 RF buffer = 255 bytes, subtract one for SoD, two for CRC
 			default:
@@ -272,7 +435,28 @@ public class NativeNfcManager implements DeviceHost {
 	}
 
 	@Override
-	public String dump() {
-		return "hello";
+	public void dump(DumpBuilder d) {
+		NfcPcd.dump(d);
+		if(d.section("poll")) {
+			int hits = mPollHitsF + mPollHitsA + mPollHitsB;
+			d.put("polling", mHandler.mPolling);
+			d.put("present", mPresence);
+			d.put("interval_ms", INTERVAL);
+			d.put("init_ms", mInitMs);
+			d.put("first_poll_ms", mFirstPollMs);
+			d.put("cycles", mPollCycles);
+			d.put("hits", hits);
+			d.put("misses", mPollCycles - hits);
+			d.put("hits_f", mPollHitsF);
+			d.put("hits_a", mPollHitsA);
+			d.put("hits_b", mPollHitsB);
+			d.put("removals", mRemovals);
+			NfcPcd.NfcId current = mCurrent;
+			d.put("current", (current != null) ? current.Label + ":" + DumpBuilder.hex(current.Id) : "-");
+		}
+		if(d.section("felica")) {
+			FelicaLayoutCache.dump(d);
+			FelicaTag.dumpStats(d);
+		}
 	}
 }
@@ -17,6 +17,7 @@
 package com.android.nfc.hiro99ma;
 
 import com.android.nfc.DeviceHost.TagEndpoint;
+import com.android.nfc.TapTracer;
 
 import android.nfc.FormatException;
 import android.nfc.NdefMessage;
@@ -33,6 +34,9 @@ import android.util.Log;
 
 import com.android.nfc.hiro99ma.NfcPcd;
 
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
 
 /**
  * Native interface to the NFC tag functions
@@ -42,12 +46,21 @@ public class NativeNfcTag implements TagEndpoint {
 
 	static final int STATUS_CODE_TARGET_LOST = 146;
 
-	private int[] mTechList = { TagTechnology.NFC_F };
-	private int[] mTechHandles = { -1 };
+	// Handles are (generation << HANDLE_TECH_BITS) | technology, so that every
+	// discovery and every technology on it gets its own handle.
+	private static final int HANDLE_TECH_BITS = HANDLE_GENERATION_SHIFT;
+	private static final int HANDLE_GENERATION_MASK = 0x7fffffff >> HANDLE_TECH_BITS;
+
+	private static final AtomicInteger sGeneration = new AtomicInteger();
+
+	private final int mGeneration;
+
+	private int[] mTechList = new int[0];
+	private int[] mTechHandles = new int[0];
 //	private int[] mTechLibNfcTypes = {5, 6};
-	private Bundle[] mTechExtras;
-	private byte[][] mTechPollBytes = new byte[1][];
-	private byte[][] mTechActBytes;
+	private Bundle[] mTechExtras;	// built once per tech list; null when stale
+	private byte[][] mTechPollBytes = new byte[0][];
+	private byte[][] mTechActBytes = new byte[0][];
 	private byte[] mUid;
 
 	// mConnectedHandle stores the *real* libnfc handle
@@ -66,25 +79,61 @@ public class NativeNfcTag implements TagEndpoint {
 
 	private final String TAG = "NativeNfcTag";
 
-	private boolean mIsPresent; // Whether the tag is known to be still present
-
-	private NfcPcd.NfcId	mNfcId;
-
+	private volatile boolean mIsPresent; // Whether the tag is known to be still present
+
+	private final NfcPcd.NfcId	mNfcId;	// this discovery's record, never modified
+	private volatile NfcPcd.NfcId	mTarget;	// activation of this tag; changes on re-select
+	private FelicaTag		mFelica;	// NFC-F only
+	private Type2Tag		mType2;		// NFC-A Type 2 only
+	private IsoDepTag		mIsoDep;	// ISO 14443-4 only
+
+	// NDEF state, valid while TagTechnology.NDEF is in mTechList
+	private NdefMessage mNdefMsg;
+	private int mNdefMaxLength;
+	private int mNdefCardState;
+	private int mNdefType;
+	private volatile int mNdefLength;	// bytes read by findAndReadNdef
+
+	private final NativeNfcManager mManager;
+	private final TapTracer.Trace mTrace;
+
+	/**
+	 * One endpoint per discovery. Builds the technology list from what the
+	 * poll returned, so switching technologies later needs no re-poll.
+	 *
+	 * @param nfcId		immutable record returned by the poll
+	 * @param trace		latency trace of this tap
+	 */
+	NativeNfcTag(NativeNfcManager manager, NfcPcd.NfcId nfcId, TapTracer.Trace trace) {
+		mManager = manager;
+		mTrace = trace;
+		mNfcId = nfcId;
+		mTarget = nfcId;
+		int generation;
+		do {
+			generation = sGeneration.incrementAndGet() & HANDLE_GENERATION_MASK;
+		} while (generation == 0);
+		mGeneration = generation;
+		mUid = mNfcId.Id.clone();
+		buildTechList();
+		mConnectedTechIndex = 0;
+		mConnectedHandle = (mTechHandles.length > 0) ? mTechHandles[0] : -1;
+	}
 
 	@Override
 	public synchronized boolean connect(int technology) {
-		mNfcId = NfcPcd.getNfcId();
-		boolean ret = false;
-		
-		Log.d(TAG, "connect:" + mNfcId.Type);
-		switch(technology) {
-		case TagTechnology.NFC_F:
-			if(mNfcId.Type == NfcPcd.NfcIdType.NFCID2) {
-				ret = reconnect();
-			}
-			break;
+		Log.d(TAG, "connect:" + technology);
+		if(!reconnect()) {
+			return false;
+		}
+		int techIndex = getTechIndex(technology);
+		if(techIndex == -1) {
+			return false;
 		}
-		return ret;
+		// all technologies share the activated target; switching is local
+		mConnectedTechIndex = techIndex;
+		mConnectedHandle = mTechHandles[techIndex];
+		return true;
 	}
 
 	@Override
@@ -94,7 +143,8 @@ public class NativeNfcTag implements TagEndpoint {
 		Log.d(TAG, "startPresenceChecking");
 		mIsPresent = true;
 		if (mWatchdog == null) {
-			mWatchdog = new PresenceCheckWatchdog();
+			mWatchdog = new PresenceCheckScheduler.Entry(new PresenceCheckCallback(),
+					PRESENCE_CHECK_TIMEOUT);
 			mWatchdog.start();
 		}
 	}
@@ -115,11 +165,6 @@ public class NativeNfcTag implements TagEndpoint {
 		if (mWatchdog != null) {
 			// Watchdog has already disconnected or will do it
 			mWatchdog.end();
-			try {
-				mWatchdog.join();
-			} catch (InterruptedException e) {
-				// Should never happen.
-			}
 			mWatchdog = null;
 			result = true;
 		} else {
@@ -128,66 +173,327 @@ public class NativeNfcTag implements TagEndpoint {
 
 		mConnectedTechIndex = -1;
 		mConnectedHandle = -1;
-		mTechExtras = null;
+		if (mFelica != null) {
+			mFelica.close();
+		}
 		return result;
 	}
 
 	@Override
 	public synchronized boolean reconnect() {
 		Log.d(TAG, "reconnect");
-		boolean ret = false;
-		
-		mNfcId = NfcPcd.getNfcId();
-		if(mNfcId.Type != NfcPcd.NfcIdType.NONE) {
-			if(mUid != null) {
-				if(NfcPcd.MemCmp(mUid, mNfcId.Id, mNfcId.Length, 0, 0) == true) {
-					// UIDが同じだから、そのまま
-					Log.d(TAG, "reconnect : same");
-					return true;
-				}
+		if(!isCurrentTarget()) {
+			Log.d(TAG, "reconnect : target changed");
+			return false;
+		}
+		if(mConnectedTechIndex == -1) {
+			mConnectedTechIndex = 0;
+			mConnectedHandle = (mTechHandles.length > 0) ? mTechHandles[0] : -1;
+		}
+		return true;
+	}
+
+	private void buildTechList() {
+		switch(mNfcId.Type) {
+		case NFCID2: {
+			byte[] pollBytes = new byte[10];
+			System.arraycopy(mNfcId.Manufacture, NfcPcd.NfcId.POS_PMM, pollBytes, 0, 8);
+			pollBytes[8] = mNfcId.Manufacture[NfcPcd.NfcId.POS_SC0];
+			pollBytes[9] = mNfcId.Manufacture[NfcPcd.NfcId.POS_SC1];
+			addTechnology(TagTechnology.NFC_F, pollBytes, null);
+			int systemCode = ((pollBytes[8] & 0xff) << 8) | (pollBytes[9] & 0xff);
+			mFelica = new FelicaTag(mManager, mNfcId, mUid, pollBytes, systemCode);
+			break;
+		}
+		case NFCID1: {
+			byte[] atqa = new byte[] {
+				mNfcId.Manufacture[NfcPcd.NfcId.POS_SENSRES0],
+				mNfcId.Manufacture[NfcPcd.NfcId.POS_SENSRES1],
+			};
+			byte[] sak = new byte[] { mNfcId.SelRes };
+			addTechnology(TagTechnology.NFC_A, atqa, sak);
+			if(mNfcId.SelRes == NfcPcd.SELRES_MIFARE_UL) {
+				// Type 2 (Ultralight / NTAG)
+				addTechnology(TagTechnology.MIFARE_ULTRALIGHT, atqa, sak);
+				mType2 = new Type2Tag(mManager, this);
+			}
+			if(mNfcId.Ats != null) {
+				mIsoDep = IsoDepTag.forTypeA(mNfcId.Ats);
+				addTechnology(TagTechnology.ISO_DEP, null, IsoDepTag.historicalBytes(mNfcId.Ats));
 			}
-			mUid = new byte[mNfcId.Length];
-			//NfcPcd.MemCpy(mUid, mNfcId.Id, mNfcId.Length, 0, 0);
-			System.arraycopy(mNfcId.Id, 0, mUid, 0, mNfcId.Length);
-			mConnectedTechIndex = 0;	//1つだけ
-			mConnectedHandle = 0;
-			mTechHandles[0] = 0;
-			mTechPollBytes[0] = new byte[10];
-			System.arraycopy(mNfcId.Manufacture, NfcPcd.NfcId.POS_PMM, mTechPollBytes[0], 0, 8);
-			mTechPollBytes[0][8] = mNfcId.Manufacture[NfcPcd.NfcId.POS_SC0];
-			mTechPollBytes[0][9] = mNfcId.Manufacture[NfcPcd.NfcId.POS_SC1];
-			mTechExtras = getTechExtras();
-			ret = true;
-			Log.d(TAG, "reconnect : new");
+			break;
+		}
+		case NFCID0: {
+			// AppData + ProtInfo, as NfcB extras expect
+			byte[] pollBytes = mNfcId.Manufacture.clone();
+			addTechnology(TagTechnology.NFC_B, pollBytes, null);
+			byte[] protInfo = new byte[NfcPcd.NfcId.LEN_PROTINFO];
+			System.arraycopy(pollBytes, NfcPcd.NfcId.POS_PROTINFO, protInfo, 0, protInfo.length);
+			mIsoDep = IsoDepTag.forTypeB(protInfo);
+			addTechnology(TagTechnology.ISO_DEP, null, IsoDepTag.higherLayerResponse(mNfcId.AttribRes));
+			break;
 		}
+		default:
+			Log.d(TAG, "not supported " + mNfcId.Type);
+			break;
+		}
+	}
+
+	private void addTechnology(int tech, byte[] pollBytes, byte[] actBytes) {
+		int n = mTechList.length;
+		mTechList = Arrays.copyOf(mTechList, n + 1);
+		mTechList[n] = tech;
+		mTechHandles = Arrays.copyOf(mTechHandles, n + 1);
+		mTechHandles[n] = (mGeneration << HANDLE_TECH_BITS) | tech;
+		mTechPollBytes = Arrays.copyOf(mTechPollBytes, n + 1);
+		mTechPollBytes[n] = pollBytes;
+		mTechActBytes = Arrays.copyOf(mTechActBytes, n + 1);
+		mTechActBytes[n] = actBytes;
+		mTechExtras = null;
+	}
 
-		return ret;
+	private int getTechIndex(int tech) {
+		for (int i = 0; i < mTechList.length; i++) {
+			if (mTechList[i] == tech) {
+				return i;
+			}
+		}
+		return -1;
 	}
 
 	@Override
 	public synchronized byte[] transceive(byte[] data, boolean raw, int[] returnCode) {
-		Log.d(TAG, "transceive");
+		if (DBG) Log.d(TAG, "transceive");
+		returnCode[0] = 0;
+		if (!isCurrentTarget()) {
+			returnCode[0] = 1;
+			return null;
+		}
+		if (mWatchdog != null) {
+			mWatchdog.pause();
+		}
+		try {
+			byte[] result = doTransceive(data, raw);
+			if ((result == null) && isLost()) {
+				returnCode[0] = 1;
+			}
+			return result;
+		} finally {
+			if (mWatchdog != null) {
+				mWatchdog.doResume();
+			}
+		}
+	}
+
+	@Override
+	public synchronized byte[][] transceive(byte[][] data, boolean raw, boolean stopOnError, int[] returnCode) {
+		if (DBG) Log.d(TAG, "transceive : batch " + data.length);
+		returnCode[0] = 0;
+		if (!isCurrentTarget()) {
+			returnCode[0] = 1;
+			return new byte[0][];
+		}
 		if (mWatchdog != null) {
 			mWatchdog.pause();
 		}
+		byte[][] results = new byte[data.length][];
+		int count = 0;
+		try {
+			while (count < data.length) {
+				results[count] = doTransceive(data[count], raw);
+				count++;
+				if (results[count - 1] == null) {
+					if (isLost()) {
+						// nothing after this can reach the tag
+						returnCode[0] = 1;
+						break;
+					}
+					if (stopOnError) {
+						break;
+					}
+				}
+			}
+		} finally {
+			if (mWatchdog != null) {
+				mWatchdog.doResume();
+			}
+		}
+		if (count < data.length) {
+			byte[][] executed = new byte[count][];
+			System.arraycopy(results, 0, executed, 0, count);
+			results = executed;
+		}
+		return results;
+	}
+
+	/** After a failed exchange: whether it failed because the tag is gone. */
+	private boolean isLost() {
+		return !mIsPresent || !isCurrentTarget();
+	}
+
+	/**
+	 * Single exchange; the caller pauses the watchdog. Holds the device lock
+	 * so that a poll cycle cannot come between the timeout setting and the
+	 * frames of one exchange.
+	 *
+	 * @param raw	false for the MIFARE Ultralight helpers (readPages etc.),
+	 *				whose commands the PCD frames itself with InDataExchange;
+	 *				true sends the frame as is
+	 */
+	private byte[] doTransceive(byte[] data, boolean raw) {
+		synchronized (NfcPcd.class) {
+			switch (getConnectedTechnology()) {
+			case TagTechnology.NFC_F:
+				return mFelica.transceiveRaw(data);
+			case TagTechnology.MIFARE_ULTRALIGHT:
+				if (!raw) {
+					return dataExchange(data);
+				}
+				return transceiveThru(data);
+			case TagTechnology.NFC_A:
+			case TagTechnology.NFC_B:
+				return transceiveThru(data);
+			case TagTechnology.ISO_DEP:
+				return mIsoDep.transceive(data, mManager.getTimeout(TagTechnology.ISO_DEP));
+			default:
+				return null;
+			}
+		}
+	}
+
+	/** NFC-A/B : InCommunicateThru (CRC is added and checked by the PCD) */
+	private byte[] transceiveThru(byte[] data) {
+		if(!NfcPcd.setCommunicationTimeout(mManager.getTimeout(getConnectedTechnology()))) {
+			return null;
+		}
+		byte[] result = new byte[NfcPcd.SIZE_RESBUF];
+		byte[] len = new byte[1];
+		if(!NfcPcd.inCommunicateThru(data, data.length, result, len)) {
+			return null;
+		}
+		return Arrays.copyOf(result, len[0] & 0xff);
+	}
+
+	/** MIFARE : InDataExchange (the PCD handles the command framing and ACK/NAK) */
+	private byte[] dataExchange(byte[] data) {
+		if(!NfcPcd.setCommunicationTimeout(mManager.getTimeout(getConnectedTechnology()))) {
+			return null;
+		}
 		byte[] result = new byte[NfcPcd.SIZE_RESBUF];
-		int[] len = new int[1];
-		boolean ret = NfcPcd.communicateThruEx((short)12000, data, data.length, result, len);
-		byte[] result_new = null;
-		if(ret) {
-			result_new = new byte[len[0]];
-			System.arraycopy(result, 0, result_new, 0, len[0]);
+		byte[] len = new byte[1];
+		if(!NfcPcd.inDataExchange(data, (byte)data.length, result, len, false)) {
+			return null;
+		}
+		return Arrays.copyOf(result, len[0] & 0xff);
+	}
+
+	@Override
+	public synchronized byte[][] felicaRead(int[] serviceCodes, int[] blocks) {
+		if (DBG) Log.d(TAG, "felicaRead : " + blocks.length);
+		if ((mFelica == null) || (serviceCodes.length != blocks.length)) {
+			return null;
+		}
+		if (mWatchdog != null) {
+			mWatchdog.pause();
+		}
+		byte[][] result;
+		synchronized (NfcPcd.class) {
+			result = mFelica.read(serviceCodes, blocks);
+		}
+		if (mWatchdog != null) {
+			mWatchdog.doResume();
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized boolean felicaWriteBuffered(int serviceCode, int block, byte[] data) {
+		if (DBG) Log.d(TAG, "felicaWriteBuffered");
+		if (mFelica == null) {
+			return false;
+		}
+		return mFelica.writeBuffered(serviceCode, block, data);
+	}
+
+	@Override
+	public synchronized boolean felicaCommitWrites() {
+		if (DBG) Log.d(TAG, "felicaCommitWrites");
+		if (mFelica == null) {
+			return false;
+		}
+		if (mWatchdog != null) {
+			mWatchdog.pause();
+		}
+		boolean result;
+		synchronized (NfcPcd.class) {
+			result = mFelica.flushWrites();
 		}
 		if (mWatchdog != null) {
 			mWatchdog.doResume();
 		}
-		return result_new;
+		return result;
+	}
+
+	@Override
+	public synchronized boolean setFelicaReadAhead(boolean on) {
+		Log.d(TAG, "setFelicaReadAhead : " + on);
+		if (mFelica == null) {
+			return false;
+		}
+		mFelica.setReadAhead(on);
+		return true;
+	}
+
+	@Override
+	public synchronized int[] felicaRequestSystemCodes() {
+		Log.d(TAG, "felicaRequestSystemCodes");
+		if (mFelica == null) {
+			return null;
+		}
+		if (mWatchdog != null) {
+			mWatchdog.pause();
+		}
+		int[] result;
+		synchronized (NfcPcd.class) {
+			result = mFelica.requestSystemCodes();
+		}
+		if (mWatchdog != null) {
+			mWatchdog.doResume();
+		}
+		return result;
+	}
+
+	@Override
+	public synchronized int[] felicaSearchServiceCodes(int systemCode) {
+		Log.d(TAG, "felicaSearchServiceCodes");
+		if (mFelica == null) {
+			return null;
+		}
+		if (mWatchdog != null) {
+			mWatchdog.pause();
+		}
+		int[] result;
+		synchronized (NfcPcd.class) {
+			result = mFelica.searchServiceCodes(systemCode);
+		}
+		if (mWatchdog != null) {
+			mWatchdog.doResume();
+		}
+		return result;
 	}
 
 	@Override
 	public synchronized boolean checkNdef(int[] ndefinfo) {
 		Log.d(TAG, "checkNdef");
-		return false;
+		if (mType2 == null) {
+			return false;
+		}
+		if (readNdef() == null) {
+			return false;
+		}
+		ndefinfo[0] = mType2.getMaxNdefLength();
+		ndefinfo[1] = mType2.isReadOnly() ? Ndef.NDEF_MODE_READ_ONLY : Ndef.NDEF_MODE_READ_WRITE;
+		return true;
 	}
 
 	@Override
@@ -197,6 +503,11 @@ public class NativeNfcTag implements TagEndpoint {
 			mWatchdog.pause();
 		}
 		byte[] result = null;
+		if (mType2 != null) {
+			synchronized (NfcPcd.class) {
+				result = mType2.readNdef();
+			}
+		}
 		if (mWatchdog != null) {
 			mWatchdog.doResume();
 		}
@@ -218,22 +529,47 @@ public class NativeNfcTag implements TagEndpoint {
 
 	@Override
 	public synchronized boolean presenceCheck() {
-		Log.d(TAG, "presenceCheck");
+		if (DBG) Log.d(TAG, "presenceCheck");
 		if (mWatchdog != null) {
 			mWatchdog.pause();
 		}
-		boolean result;
-		if(NfcPcd.getNfcId().Type != NfcPcd.NfcIdType.NONE) {
-			result = true;
-		} else {
-			result = false;
-		}
+		boolean result = doPresenceCheck();
 		if (mWatchdog != null) {
 			mWatchdog.doResume();
 		}
 		return result;
 	}
 
+	private boolean doPresenceCheck() {
+		return isCurrentTarget();
+	}
+
+	/** Whether this endpoint's target is still the one the PCD has activated. */
+	private boolean isCurrentTarget() {
+		// records are created per poll, so identity means the same activation
+		return mManager.getCurrentTarget() == mTarget;
+	}
+
+	/**
+	 * Re-selects this NFC-A tag after it dropped to IDLE, and moves the
+	 * endpoint and the manager to the new activation. Call with the NfcPcd
+	 * device lock held.
+	 *
+	 * @return false if no tag, or a different one, answered
+	 */
+	boolean reactivateA() {
+		NfcPcd.NfcId id = NfcPcd.pollingA();
+		if ((id == null) || !Arrays.equals(id.Id, mUid)) {
+			Log.d(TAG, "reactivateA : tag lost");
+			return false;
+		}
+		if (!mManager.retarget(mTarget, id)) {
+			return false;
+		}
+		mTarget = id;
+		return true;
+	}
+
 	@Override
 	public synchronized boolean formatNdef(byte[] key) {
 		Log.d(TAG, "formatNdef");
@@ -268,30 +604,36 @@ public class NativeNfcTag implements TagEndpoint {
 
 	@Override
 	public int getHandle() {
-		// This is just a handle for the clients; it can simply use the first
-		// technology handle we have.
-		if (mTechHandles.length > 0) {
-			return mTechHandles[0];
-		} else {
-			return 0;
-		}
+		// This is just a handle for the clients; technology 0 is unused, so
+		// it never collides with a technology handle.
+		return mGeneration << HANDLE_TECH_BITS;
+	}
+
+	@Override
+	public TapTracer.Trace getTapTrace() {
+		return mTrace;
+	}
+
+	@Override
+	public int getNdefLength() {
+		return mNdefLength;
 	}
 
 	@Override
 	public byte[] getUid() {
-		Log.d(TAG, "getUid : " + mUid.length);
+		if (DBG) Log.d(TAG, "getUid : " + mUid.length);
 		return mUid;
 	}
 
 	@Override
 	public int[] getTechList() {
-		Log.d(TAG, "getTechList");
+		if (DBG) Log.d(TAG, "getTechList");
 		return mTechList;
 	}
 
 	@Override
 	public int getConnectedTechnology() {
-		Log.d(TAG, "getConnectedTechnology : mConnectedTechIndex=" + mConnectedTechIndex);
+		if (DBG) Log.d(TAG, "getConnectedTechnology : mConnectedTechIndex=" + mConnectedTechIndex);
 		if (mConnectedTechIndex != -1 && mConnectedTechIndex < mTechList.length) {
 			return mTechList[mConnectedTechIndex];
 		} else {
@@ -302,36 +644,53 @@ public class NativeNfcTag implements TagEndpoint {
 	@Override
 	public void removeTechnology(int tech) {
 		Log.d(TAG, "removeTechnology");
-//		synchronized (this) {
-//			int techIndex = getTechIndex(tech);
-//			if (techIndex != -1) {
-//				int[] mNewTechList = new int[mTechList.length - 1];
-//				System.arraycopy(mTechList, 0, mNewTechList, 0, techIndex);
-//				System.arraycopy(mTechList, techIndex + 1, mNewTechList, techIndex,
-//						mTechList.length - techIndex - 1);
-//				mTechList = mNewTechList;
-//
-//				int[] mNewHandleList = new int[mTechHandles.length - 1];
-//				System.arraycopy(mTechHandles, 0, mNewHandleList, 0, techIndex);
-//				System.arraycopy(mTechHandles, techIndex + 1, mNewTechList, techIndex,
-//						mTechHandles.length - techIndex - 1);
-//				mTechHandles = mNewHandleList;
-//
-//				int[] mNewTypeList = new int[mTechLibNfcTypes.length - 1];
-//				System.arraycopy(mTechLibNfcTypes, 0, mNewTypeList, 0, techIndex);
-//				System.arraycopy(mTechLibNfcTypes, techIndex + 1, mNewTypeList, techIndex,
-//						mTechLibNfcTypes.length - techIndex - 1);
-//				mTechLibNfcTypes = mNewTypeList;
-//			}
-//		}
+		synchronized (this) {
+			int techIndex = getTechIndex(tech);
+			if (techIndex == -1) {
+				return;
+			}
+			mTechList = removeAt(mTechList, techIndex);
+			mTechHandles = removeAt(mTechHandles, techIndex);
+			mTechPollBytes = removeAt(mTechPollBytes, techIndex);
+			mTechActBytes = removeAt(mTechActBytes, techIndex);
+			if (mConnectedTechIndex == techIndex) {
+				mConnectedTechIndex = -1;
+				mConnectedHandle = -1;
+			} else if (mConnectedTechIndex > techIndex) {
+				mConnectedTechIndex--;
+			}
+			if (tech == TagTechnology.NDEF) {
+				mNdefMsg = null;
+			}
+			mTechExtras = null;
+		}
 	}
 
+	private static int[] removeAt(int[] src, int index) {
+		int[] dst = new int[src.length - 1];
+		System.arraycopy(src, 0, dst, 0, index);
+		System.arraycopy(src, index + 1, dst, index, src.length - index - 1);
+		return dst;
+	}
+
+	private static byte[][] removeAt(byte[][] src, int index) {
+		byte[][] dst = new byte[src.length - 1][];
+		System.arraycopy(src, 0, dst, 0, index);
+		System.arraycopy(src, index + 1, dst, index, src.length - index - 1);
+		return dst;
+	}
 
+
+	/**
+	 * The extras only depend on this discovery and the technology list, so
+	 * they are built on first use and reused until the list changes.
+	 */
 	@Override
 	public Bundle[] getTechExtras() {
-		Log.d(TAG, "getTechExtras");
 		synchronized (this) {
-			//if (mTechExtras != null) return mTechExtras;
+			if (mTechExtras != null) {
+				return mTechExtras;
+			}
 			mTechExtras = new Bundle[mTechList.length];
 			for (int i = 0; i < mTechList.length; i++) {
 				Bundle extras = new Bundle();
@@ -379,15 +738,18 @@ public class NativeNfcTag implements TagEndpoint {
 						break;
 					}
 
-//					case TagTechnology.ISO_DEP: {
-//						if (hasTech(TagTechnology.NFC_A)) {
-//							extras.putByteArray(IsoDep.EXTRA_HIST_BYTES, mTechActBytes[i]);
-//						}
-//						else {
-//							extras.putByteArray(IsoDep.EXTRA_HI_LAYER_RESP, mTechActBytes[i]);
-//						}
-//						break;
-//					}
+					case TagTechnology.ISO_DEP: {
+						if (getTechIndex(TagTechnology.NFC_A) != -1) {
+							extras.putByteArray(IsoDep.EXTRA_HIST_BYTES, mTechActBytes[i]);
+						}
+						else {
+							extras.putByteArray(IsoDep.EXTRA_HI_LAYER_RESP, mTechActBytes[i]);
+						}
+						if (mIsoDep != null) {
+							mIsoDep.putExtras(extras);
+						}
+						break;
+					}
 
 //					case TagTechnology.NFC_V: {
 //						// First byte response flags, second byte DSFID
@@ -398,11 +760,21 @@ public class NativeNfcTag implements TagEndpoint {
 //						break;
 //					}
 
-//					case TagTechnology.MIFARE_ULTRALIGHT: {
-//						boolean isUlc = isUltralightC();
-//						extras.putBoolean(MifareUltralight.EXTRA_IS_UL_C, isUlc);
-//						break;
-//					}
+					case TagTechnology.MIFARE_ULTRALIGHT: {
+						// Ultralight C is not told apart yet
+						extras.putBoolean(MifareUltralight.EXTRA_IS_UL_C, false);
+						break;
+					}
+
+					case TagTechnology.NDEF: {
+						if (mNdefMsg != null) {
+							extras.putParcelable(Ndef.EXTRA_NDEF_MSG, mNdefMsg);
+						}
+						extras.putInt(Ndef.EXTRA_NDEF_MAXLENGTH, mNdefMaxLength);
+						extras.putInt(Ndef.EXTRA_NDEF_CARDSTATE, mNdefCardState);
+						extras.putInt(Ndef.EXTRA_NDEF_TYPE, mNdefType);
+						break;
+					}
 
 					default: {
 						// Leave the entry in the array null
@@ -418,7 +790,34 @@ public class NativeNfcTag implements TagEndpoint {
 	@Override
 	public NdefMessage[] findAndReadNdef() {
 		Log.d(TAG, "findAndReadNdef");
-		return null;
+		synchronized (this) {
+			if (!reconnect() || (mType2 == null)) {
+				return null;
+			}
+			byte[] buf = readNdef();
+			if (buf == null) {
+				return null;
+			}
+			NdefMessage msg;
+			try {
+				msg = new NdefMessage(buf);
+			} catch (FormatException e) {
+				Log.d(TAG, "findAndReadNdef : bad NDEF");
+				return null;
+			}
+			mNdefMsg = msg;
+			mNdefLength = buf.length;
+			mNdefMaxLength = mType2.getMaxNdefLength();
+			mNdefCardState = mType2.isReadOnly() ? Ndef.NDEF_MODE_READ_ONLY : Ndef.NDEF_MODE_READ_WRITE;
+			mNdefType = Ndef.TYPE_2;
+			if (getTechIndex(TagTechnology.NDEF) == -1) {
+				addTechnology(TagTechnology.NDEF, null, null);
+			} else {
+				// same list, but the NDEF extras changed
+				mTechExtras = null;
+			}
+			return new NdefMessage[] { msg };
+		}
 	}
 
 
@@ -427,68 +826,24 @@ public class NativeNfcTag implements TagEndpoint {
 	// WDT
 	///////////////////////////////////////////////////
 
-	private PresenceCheckWatchdog mWatchdog;
-	class PresenceCheckWatchdog extends Thread {
-
-		private int watchdogTimeout = 125;
+	private static final int PRESENCE_CHECK_TIMEOUT = 125;	//msec
 
-		private boolean isPresent = true;
-		private boolean isStopped = false;
-		private boolean isPaused = false;
-		private boolean doCheck = true;
+	private PresenceCheckScheduler.Entry mWatchdog;
 
-		public synchronized void pause() {
-			isPaused = true;
-			doCheck = false;
-			this.notifyAll();
-		}
-
-		public synchronized void doResume() {
-			isPaused = false;
-			// We don't want to resume presence checking immediately,
-			// but go through at least one more wait period.
-			doCheck = false;
-			this.notifyAll();
-		}
-
-		public synchronized void end() {
-			isStopped = true;
-			doCheck = false;
-			this.notifyAll();
-		}
-
-		public synchronized void setTimeout(int timeout) {
-			watchdogTimeout = timeout;
-			doCheck = false; // Do it only after we have waited "timeout" ms again
-			this.notifyAll();
+	private final class PresenceCheckCallback implements PresenceCheckScheduler.Entry.Callback {
+		@Override
+		public boolean checkPresence() {
+			// Runs on the shared scheduler thread, so it must not wait for
+			// the tag lock: a long transceive on one tag would stall the
+			// checks of all the others. doPresenceCheck() only reads the
+			// manager's volatile current target and our final record.
+			return doPresenceCheck();
 		}
 
 		@Override
-		public synchronized void run() {
-			if (DBG) Log.d(TAG, "Starting background presence check");
-			while (isPresent && !isStopped) {
-				try {
-					if (!isPaused) {
-						doCheck = true;
-					}
-					this.wait(watchdogTimeout);
-					if (doCheck) {
-						isPresent = isPresent();
-					} else {
-						// 1) We are paused, waiting for unpause
-						// 2) We just unpaused, do pres check in next iteration
-						//       (after watchdogTimeout ms sleep)
-						// 3) We just set the timeout, wait for this timeout
-						//       to expire once first.
-						// 4) We just stopped, exit loop anyway
-					}
-				} catch (InterruptedException e) {
-					// Activity detected, loop
-				}
-			}
+		public void onTagLost() {
 			mIsPresent = false;
 			// Restart the polling loop
-
 			Log.d(TAG, "Tag lost, restarting polling loop");
 			disconnect();
 			if (DBG) Log.d(TAG, "Stopping background presence check");
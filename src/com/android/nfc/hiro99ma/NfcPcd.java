@@ -12,6 +12,17 @@ import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
 import android.util.Log;
 
+import com.android.nfc.DumpBuilder;
+import com.android.nfc.EventLogTags;
+
+/**
+ * PaSoRi(RC-S370)ドライバ
+ *
+ * デバイスは1つで送受信バッファ(s_SendBuf/s_ResponseBuf)も共有なので、
+ * コマンドを送るメソッドはすべてNfcPcd.classでロックする(デバイスロック)。
+ * 続けて送るコマンドの間に他スレッドのコマンドを挟まれたくない呼び出し側は、
+ * synchronized (NfcPcd.class) で囲むこと。
+ */
 public class NfcPcd {
 
 	public enum RecvBroadcast {
@@ -27,6 +38,9 @@ public class NfcPcd {
 	public static final int SIZE_CMDBUF = 254;
 	public static final int SIZE_RESBUF = 254;
 
+	public static final int SIZE_DEP_DATA = 252;		///< InDataExchange 1回で送るデータ(Normal Frame)
+	public static final int SIZE_DEP_RESBUF = 262;		///< InDataExchange 1回で受けるデータ
+
 	public static final int SIZE_NFCID2 = 8;
 	public static final int SIZE_NFCID3 = 10;
 	public static final int SIZE_NFCIDMAX = 12;
@@ -39,6 +53,7 @@ public class NfcPcd {
 	public static final byte BR_106K = 0x00;		///< 106kbps(MIFARE)
 	public static final byte BR_212K = 0x01;		///< 212kbps(FeliCa)
 	public static final byte BR_424K = 0x02;		///< 424kbps(FeliCa)
+	public static final byte BR_847K = 0x03;		///< 847kbps(ISO14443-4)
 
 	/// SelRes
 	public static final byte SELRES_MIFARE_UL		= 0x00;			///< MIFARE Ultralight
@@ -74,6 +89,33 @@ public class NfcPcd {
 	private static UsbEndpoint mEndpointOut;
 	private static UsbEndpoint mEndpointIn;
 
+	/// コマンド統計(コマンドコード毎、NfcPcd.classでロック)
+	private static final int[] s_CmdCount = new int[256];
+	private static final int[] s_CmdErrors = new int[256];
+	private static final long[] s_CmdMicros = new long[256];
+	private static final long[] s_CmdMaxMicros = new long[256];
+
+	/// 回復イベント(NfcPcd.classでロック)
+	private static int s_NoAck;				///< ACKが返らなかった
+	private static int s_AckSent;			///< 同期回復のためのACK送信
+	private static int s_WriteErrors;		///< USB書込み失敗
+	private static int s_ReadRetries;		///< USB読込みリトライ
+	private static int s_Attach;			///< デバイス接続
+
+	private static byte[] s_Firmware;		///< GetFirmwareVersion : IC, Ver, Rev, Support
+
+	/// 失敗要因(event log : nfc_reader_error)
+	private static final int ERR_NONE = 0;
+	private static final int ERR_WRITE = 1;			///< USB書込み失敗
+	private static final int ERR_NO_ACK = 2;		///< ACKなし
+	private static final int ERR_NO_SPACE = 3;		///< 送信フレームが作れない
+	private static final int ERR_RECV = 10;			///< + recvResp内の番号
+	private static int s_LastError;
+
+	/// 回復イベント(event log : nfc_reader_recovery)
+	private static final int RECOVERY_ACK = 1;
+	private static final int RECOVERY_ATTACH = 2;
+
 	//private static ByteBuffer mNfcId3i = ByteBuffer.allocate(SIZE_NFCID3);	///< NFCID3 for Initiator
 	//private static ByteBuffer mNfcId3t = ByteBuffer.allocate(SIZE_NFCID3);	///< NFCID3 for Target
 	private static byte[] mNfcId3i = new byte[SIZE_NFCID3];	///< NFCID3 for Initiator
@@ -86,57 +128,50 @@ public class NfcPcd {
 		NFCID2,
 		NFCID3
 	};
-	public static class NfcId implements Cloneable {
+	/**
+	 * ポーリング結果(検出レコード)
+	 *
+	 * ポーリングごとに新しく作られ、作成後は変更しない(配列の中身も含めて)。
+	 * 共有状態を持たないので、読む側はロックもcloneも不要。
+	 */
+	public static final class NfcId {
 		// NFC-A
 		public static final int POS_SELRES = 0;
 		public static final int POS_SENSRES0 = 1;
 		public static final int POS_SENSRES1 = 2;
 
+		// NFC-B
+		public static final int POS_APPDATA = 0;
+		public static final int POS_PROTINFO = 4;
+		public static final int LEN_APPDATA = 4;
+		public static final int LEN_PROTINFO = 3;
+
 		// NFC-F
 		public static final int POS_PMM = 0;
 		public static final int POS_SC0 = 8;
 		public static final int POS_SC1 = 9;
 
-		public byte[]		Id = new byte[SIZE_NFCIDMAX];
-		public NfcIdType	Type;
-		public byte			Length;
-		public String		Label;
-		public byte[]		Manufacture;
-		public byte			SelRes;
-
-		public static NfcId allocate() { return new NfcId(); }
-		public void reset() {
-			for(int i=0; i<Id.length; i++) {
-				Id[i] = 0;
-			}
-			Type = NfcIdType.NONE;
-			Length = -1;
-			Label = "unknown";
-			Manufacture = null;
-		}
-		public NfcId clone() {
-			try {
-				NfcId me = (NfcId)super.clone();
-				me.Id = this.Id.clone();
-				me.Label = new String(this.Label);
-				me.Manufacture = this.Manufacture.clone();
-				return me;
-			}
-			catch (CloneNotSupportedException e) {
-				e.printStackTrace();
-				return null;
-			}
-		}
-		public void copy(NfcId nfcid) {
-			this.Id = (byte[])nfcid.Id.clone();
-			this.Type = nfcid.Type;
-			this.Length = nfcid.Length;
-			this.Label = new String(nfcid.Label);
-			this.Manufacture = (byte[])nfcid.Manufacture.clone();
-			this.SelRes = nfcid.SelRes;
+		public final byte[]		Id;			///< Length byte
+		public final NfcIdType	Type;
+		public final byte		Length;
+		public final String		Label;
+		public final byte[]		Manufacture;
+		public final byte		SelRes;
+		public final byte[]		Ats;		///< NFC-A : ATS(TL含む)、ISO-DEP非対応ならnull
+		public final byte[]		AttribRes;	///< NFC-B : ATTRIB_RES
+
+		private NfcId(NfcIdType type, byte[] id, String label, byte[] manufacture,
+						byte selRes, byte[] ats, byte[] attribRes) {
+			Type = type;
+			Id = id;
+			Length = (byte)id.length;
+			Label = label;
+			Manufacture = manufacture;
+			SelRes = selRes;
+			Ats = ats;
+			AttribRes = attribRes;
 		}
 	}
-	private static NfcId mNfcId = NfcId.allocate();
 
 	private static final short RW_COMMAND_LEN = 265;
 	private static final short RW_RESPONSE_LEN = 265;
@@ -158,6 +193,9 @@ public class NfcPcd {
 	/// 受信バッファ？
 	private static byte[] s_ResponseBuf = new byte[RW_RESPONSE_BUFLEN];
 
+	/// 非DEP通信時のタイムアウト(RFConfiguration設定値)
+	private static byte s_TimeoutCode = 0x00;
+
 	///
 	private static boolean mOpened = false;
 
@@ -165,11 +203,8 @@ public class NfcPcd {
 		return mOpened;
 	}
 
-	public static final NfcId getNfcId() {
-		return mNfcId;
-	}
 
-	public static IntentFilter init(Context context, UsbManager mgr) {
+	public static synchronized IntentFilter init(Context context, UsbManager mgr) {
 //    	if(mOpened) {
 //    		return null;
 //    	}
@@ -215,7 +250,7 @@ public class NfcPcd {
 		return filter;
 	}
 
-	public static void destroy() {
+	public static synchronized void destroy() {
 		if(mDeviceConnection != null) {
 			rfOff();
 			reset();
@@ -223,7 +258,7 @@ public class NfcPcd {
 		setInterface(null, null);
 	}
 
-	public static RecvBroadcast receiveBroadcast(Context context, Intent intent) {
+	public static synchronized RecvBroadcast receiveBroadcast(Context context, Intent intent) {
 		RecvBroadcast ret = RecvBroadcast.UNKNOWN;
 		String action = intent.getAction();
 		if (ACTION_USB_PERMISSION.equals(action)) {
@@ -279,7 +314,7 @@ public class NfcPcd {
 		return null;
 	}
 
-	private static boolean setInterface(UsbDevice device, UsbInterface intf) {
+	private static synchronized boolean setInterface(UsbDevice device, UsbInterface intf) {
 		if (mDeviceConnection != null) {
 			Log.d(TAG, "setInterface : mDeviceConnection != null");
 			if (mInterface != null) {
@@ -307,6 +342,9 @@ public class NfcPcd {
 						mInterface = intf;
 						findEndPoint(connection, intf);
 						rfConfigInit();
+						s_Firmware = getFirmwareVersion();
+						s_Attach++;
+						EventLogTags.writeNfcReaderRecovery(RECOVERY_ATTACH, s_Attach);
 						return true;
 					} else {
 						Log.d(TAG, "setInterface : close");
@@ -347,7 +385,7 @@ public class NfcPcd {
 		mEndpointIn = epIn;
 	}
 
-	public static boolean sendCmd(final byte[] cmd, int len, byte[] res, int[] rlen) {
+	public static synchronized boolean sendCmd(final byte[] cmd, int len, byte[] res, int[] rlen) {
 		rlen[0] = 0;
 		return false;
 	}
@@ -381,6 +419,21 @@ public class NfcPcd {
 	private static short hl16(byte h8, byte l8) {
 		return (short)(((short)h8 << 8) | ((short)l8 & 0x00ff));
 	}
+
+	/**
+	 *  @brief	msec→CommunicateThruEXのタイムアウト値
+	 *
+	 * 0.5msec単位に変換する(16bitで飽和)
+	 */
+	public static short msecToTimeout(int msec) {
+		int timeout = msec * 2;
+		if(timeout > 0xffff) {
+			timeout = 0xffff;
+		} else if(timeout < 1) {
+			timeout = 1;
+		}
+		return (short)timeout;
+	}
 	/// @}
 
 
@@ -398,7 +451,7 @@ public class NfcPcd {
 //	public static final ByteBuffer getNfcId3i() {
 //		return mNfcId3i;
 //	}
-	public static final byte[] getNfcId3i() {
+	public static final synchronized byte[] getNfcId3i() {
 		return mNfcId3i;
 	}
 
@@ -415,7 +468,7 @@ public class NfcPcd {
 //		mNfcId3i.reset();
 //		pId.reset();		//final�Ȃ̂ɂł���́H
 //	}
-	public static void setNfcId3i(final byte[] pId) {
+	public static synchronized void setNfcId3i(final byte[] pId) {
 		mNfcId3i = pId.clone();
 	}
 
@@ -433,7 +486,7 @@ public class NfcPcd {
 //		//mNfcId3i.put(0x00);
 //		//mNfcId3i.put(0x00);
 //	}
-	public static void setNfcId3iAsId2(final byte[] pIdm) {
+	public static synchronized void setNfcId3iAsId2(final byte[] pIdm) {
 		mNfcId3i = pIdm.clone();
 		mNfcId3i[8] = 0x00;
 		mNfcId3i[9] = 0x00;
@@ -454,7 +507,7 @@ public class NfcPcd {
 //	public static final ByteBuffer getNfcId3t() {
 //		return mNfcId3t;
 //	}
-	public static final byte[] getNfcId3t() {
+	public static final synchronized byte[] getNfcId3t() {
 		return mNfcId3t;
 	}
 
@@ -471,7 +524,7 @@ public class NfcPcd {
 //		mNfcId3t.reset();
 //		pId.reset();
 //	}
-	public static void setNfcId3t(final byte[] pId) {
+	public static synchronized void setNfcId3t(final byte[] pId) {
 		mNfcId3t = pId.clone();
 	}
 
@@ -489,7 +542,7 @@ public class NfcPcd {
 //		//mNfcId3t[8] = 0x00;
 //		//mNfcId3t[9] = 0x00;
 //	}
-	public static void setNfcId3tAsId2(final byte[] pIdm) {
+	public static synchronized void setNfcId3tAsId2(final byte[] pIdm) {
 		mNfcId3t= pIdm.clone();
 		mNfcId3t[8] = 0x00;
 		mNfcId3t[9] = 0x00;
@@ -498,7 +551,7 @@ public class NfcPcd {
 
 	////////////////////////////////////////////////////
 
-	public static boolean sendCmd(
+	public static synchronized boolean sendCmd(
 			final byte[] pCommand, int CommandLen,
 			byte[] pResponse, short[] pResponseLen) {
 		return sendCmd(pCommand, CommandLen, pResponse, pResponseLen, true);
@@ -519,6 +572,28 @@ public class NfcPcd {
 				final byte[] pCommand, int CommandLen,
 				byte[] pResponse, short[] pResponseLen,
 				boolean bRecv)
+	{
+		int code = ((pCommand != null) ? pCommand[1] : s_SendBuf[POS_CMD + 1]) & 0xff;
+		long start = System.nanoTime();
+		s_LastError = ERR_NONE;
+		boolean ret = _sendCmd(pCommand, CommandLen, pResponse, pResponseLen, bRecv);
+		long usec = (System.nanoTime() - start) / 1000;
+		s_CmdCount[code]++;
+		s_CmdMicros[code] += usec;
+		if(usec > s_CmdMaxMicros[code]) {
+			s_CmdMaxMicros[code] = usec;
+		}
+		if(!ret) {
+			s_CmdErrors[code]++;
+			EventLogTags.writeNfcReaderError(code, s_LastError);
+		}
+		return ret;
+	}
+
+	private static boolean _sendCmd(
+				final byte[] pCommand, int CommandLen,
+				byte[] pResponse, short[] pResponseLen,
+				boolean bRecv)
 	{
 		pResponseLen[0] = 0;
 		short send_len = 0;
@@ -548,6 +623,7 @@ public class NfcPcd {
 				MemCpy(s_SendBuf, pCommand, CommandLen, 8, 0);
 			} else {
 				Log.e(TAG, "no space.");
+				s_LastError = ERR_NO_SPACE;
 				return false;
 			}
 		}
@@ -565,6 +641,8 @@ public class NfcPcd {
 
 		if(_port_write(s_SendBuf, send_len) != send_len) {
 			Log.e(TAG, "write error.");
+			s_LastError = ERR_WRITE;
+			s_WriteErrors++;
 			return false;
 		}
 
@@ -572,6 +650,8 @@ public class NfcPcd {
 		short ret_len = _port_read(s_RecvBuf, s_RecvBuf.length);
 		if((ret_len != ACK.length) || !MemCmp(s_RecvBuf, ACK, ACK.length, 0, 0)) {
 			Log.e(TAG, "sendCmd 0: ret " + ret_len);
+			s_LastError = ERR_NO_ACK;
+			s_NoAck++;
 			sendAck();
 			return false;
 		}
@@ -605,22 +685,25 @@ public class NfcPcd {
 
 		if(ret_len < 0) {
 			Log.e(TAG, "recvResp 1: ret=" + ret_len);
+			s_LastError = ERR_RECV + 1;
 			sendAck();
 			return false;
 		}
 
 		if ((s_RecvBuf[0] != 0x00) || (s_RecvBuf[1] != 0x00) || (s_RecvBuf[2] != (byte)0xff)) {
 			Log.e(TAG, "recvResp 2");
+			s_LastError = ERR_RECV + 2;
 			return false;
 		}
 		int offset = 0;
-		if((s_RecvBuf[3] == 0xff) && (s_RecvBuf[4] == 0xff)) {
+		if((s_RecvBuf[3] == (byte)0xff) && (s_RecvBuf[4] == (byte)0xff)) {
 			// extend frame
-			if((ret_len != 3) || (((s_RecvBuf[0] + s_RecvBuf[1] + s_RecvBuf[2]) & 0xff) != 0)) {
+			if((ret_len < POS_CMD_EXT) || (((s_RecvBuf[5] + s_RecvBuf[6] + s_RecvBuf[7]) & 0xff) != 0)) {
 				Log.e(TAG, "recvResp 3: ret " + ret_len);
+				s_LastError = ERR_RECV + 3;
 				return false;
 			}
-			pResponseLen[0] = (short)(((short)s_RecvBuf[5] << 8) | s_RecvBuf[6]);
+			pResponseLen[0] = (short)(((s_RecvBuf[5] & 0xff) << 8) | (s_RecvBuf[6] & 0xff));
 			offset = POS_CMD_EXT;
 		} else {
 			// normal frame
@@ -631,13 +714,15 @@ public class NfcPcd {
 					return true;
 				}
 				Log.e(TAG, "recvResp 4");
+				s_LastError = ERR_RECV + 4;
 				return false;
 			}
-			pResponseLen[0] = s_RecvBuf[3];
+			pResponseLen[0] = (short)(s_RecvBuf[3] & 0xff);
 			offset = POS_CMD;
 		}
 		if(pResponseLen[0] > RW_RESPONSE_LEN) {
 			Log.e(TAG, "recvResp 5  len " + pResponseLen[0]);
+			s_LastError = ERR_RECV + 5;
 			return false;
 		}
 
@@ -651,11 +736,13 @@ public class NfcPcd {
 			} else {
 				Log.e(TAG, "recvResp 6 :[" + pResponse[0] + "] ret_len " + pResponseLen[0]);
 			}
+			s_LastError = ERR_RECV + 6;
 			sendAck();
 			return false;
 		}
 		if((CmdCode != (byte)0xff) && (pResponse[1] != (byte)(CmdCode+1))) {
 			Log.e(TAG, "recvResp 7 : ret " + pResponse[1]);
+			s_LastError = ERR_RECV + 7;
 			sendAck();
 			return false;
 		}
@@ -663,6 +750,7 @@ public class NfcPcd {
 		byte dcs = _calc_dcs(pResponse, pResponseLen[0]);
 		if((s_RecvBuf[offset+pResponseLen[0]] != dcs) || (s_RecvBuf[offset+pResponseLen[0]+1] != 0x00)) {
 			Log.e(TAG, "recvResp 8");
+			s_LastError = ERR_RECV + 8;
 			sendAck();
 			return false;
 		}
@@ -674,7 +762,9 @@ public class NfcPcd {
 /**
  * ACK送信
  */
-	private static void sendAck() {
+	private static synchronized void sendAck() {
+		s_AckSent++;
+		EventLogTags.writeNfcReaderRecovery(RECOVERY_ACK, s_AckSent);
 		_port_write(ACK, ACK.length);
 
 		// wait 1ms
@@ -720,6 +810,7 @@ public class NfcPcd {
 				break;
 			} else {
 				Log.e(TAG, "USB read fail");
+				s_ReadRetries++;
 			}
 		}
 		return (short)ret;
@@ -755,13 +846,14 @@ public class NfcPcd {
 	 * @retval	false		初期化失敗
 	 * @attention			初期化失敗時には、#rfOff()を呼び出すこと
 	 */
-	private static boolean rfConfigInit() {
+	private static synchronized boolean rfConfigInit() {
 		//LOGD("%s", __PRETTY_FUNCTION__);
 
 		boolean ret;
 		short[] res_len = new short[1];
 
 		// RF通信のT/O
+		s_TimeoutCode = 0x00;
 		final byte[] RFCONFIG1 = new byte[]{
 			MAINCMD, 0x32,
 			0x02,		// T/O
@@ -814,7 +906,7 @@ public class NfcPcd {
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean rfOff() {
+	public static synchronized boolean rfOff() {
 		//LOGD("%s", __PRETTY_FUNCTION__);
 
 		short[] res_len = new short[1];
@@ -843,7 +935,7 @@ public class NfcPcd {
 	 * @retval	true		成功
 	 * @retval	false		失敗
 	 */
-	public static boolean rfConfiguration(final byte[] pCommand, int CommandLen) {
+	public static synchronized boolean rfConfiguration(final byte[] pCommand, int CommandLen) {
 		//LOGD("%s", __PRETTY_FUNCTION__);
 
 		s_SendBuf[POS_CMD + 0] = MAINCMD;
@@ -862,13 +954,46 @@ public class NfcPcd {
 	}
 
 
+	/**
+	 * 非DEP通信(InCommunicateThru/InDataExchange)のタイムアウト設定
+	 *
+	 * RFConfiguration(Various timings)の値は 100usec * 2^(n-1) なので、
+	 * msec以上になる最小のnを使う。同じ値なら送信しない。
+	 *
+	 * @param[in]	msec		タイムアウト[msec]
+	 * @retval		true			成功
+	 * @retval		false			失敗
+	 */
+	public static synchronized boolean setCommunicationTimeout(int msec) {
+		byte code = 0x01;
+		while((code < 0x10) && ((100L << (code - 1)) < msec * 1000L)) {
+			code++;
+		}
+		if(code == s_TimeoutCode) {
+			return true;
+		}
+
+		final byte[] TIMINGS = new byte[] {
+			0x02,		// Various timings
+			0x00,		// RFU
+			0x00,		// ATR_RES : no timeout
+			code,		// 非DEP通信時
+		};
+		if(!rfConfiguration(TIMINGS, TIMINGS.length)) {
+			s_TimeoutCode = 0;
+			return false;
+		}
+		s_TimeoutCode = code;
+		return true;
+	}
+
 	/**
 	 * [RC-S620/S]Reset
 	 *
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean reset() {
+	public static synchronized boolean reset() {
 		//LOGD("%s", __PRETTY_FUNCTION__);
 
 		final byte[] RESET = new byte[]{ MAINCMD, 0x18, 0x01 };
@@ -882,6 +1007,64 @@ public class NfcPcd {
 		return true;
 	}
 
+	/**
+	 * GetFirmwareVersion
+	 *
+	 * @return		IC, Ver, Rev, Support(失敗時はnull)
+	 */
+	public static synchronized byte[] getFirmwareVersion() {
+		final byte[] GFV = new byte[] { MAINCMD, 0x02 };
+		short[] res_len = new short[1];
+		boolean ret = sendCmd(GFV, GFV.length, s_ResponseBuf, res_len);
+		if(!ret || (res_len[0] != 6)) {
+			Log.e(TAG, "getFirmwareVersion ret " + ret);
+			return null;
+		}
+		byte[] ver = new byte[4];
+		MemCpy(ver, s_ResponseBuf, ver.length, 0, 2);
+		return ver;
+	}
+
+	/**
+	 * 診断情報 : reader / commands / recovery
+	 *
+	 * @param[out]	d		出力先
+	 */
+	public static synchronized void dump(DumpBuilder d) {
+		if(d.section("reader")) {
+			d.put("opened", mOpened);
+			d.put("device", (mDevice != null) ? mDevice.getDeviceName() : "-");
+			d.put("vid", String.format("%04x", PASORI_VID));
+			d.put("pid", String.format("%04x", PASORI_PID));
+			if(s_Firmware != null) {
+				d.put("ic", String.format("%02x", s_Firmware[0] & 0xff));
+				d.put("firmware", (s_Firmware[1] & 0xff) + "." + (s_Firmware[2] & 0xff));
+				d.put("support", String.format("%02x", s_Firmware[3] & 0xff));
+			} else {
+				d.put("firmware", "-");
+			}
+			d.put("timeout_code", s_TimeoutCode);
+		}
+		if(d.section("commands")) {
+			// d4_XX=回数/平均usec/最大usec/失敗
+			for(int i = 0; i < s_CmdCount.length; i++) {
+				if(s_CmdCount[i] > 0) {
+					d.put(String.format("d4_%02x", i), s_CmdCount[i]
+							+ "/" + (s_CmdMicros[i] / s_CmdCount[i])
+							+ "/" + s_CmdMaxMicros[i]
+							+ "/" + s_CmdErrors[i]);
+				}
+			}
+		}
+		if(d.section("recovery")) {
+			d.put("attach", s_Attach);
+			d.put("no_ack", s_NoAck);
+			d.put("ack_sent", s_AckSent);
+			d.put("write_errors", s_WriteErrors);
+			d.put("read_retries", s_ReadRetries);
+		}
+	}
+
 	/**
 	 * GetGeneralStatus
 	 *
@@ -889,7 +1072,7 @@ public class NfcPcd {
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean getGeneralStatus(byte[] pResponse)
+	public static synchronized boolean getGeneralStatus(byte[] pResponse)
 	{
 		//LOGD("%s", __PRETTY_FUNCTION__);
 
@@ -920,7 +1103,7 @@ public class NfcPcd {
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean setParameters(byte val) {
+	public static synchronized boolean setParameters(byte val) {
 		//LOGD("%s", __PRETTY_FUNCTION__);
 
 		s_SendBuf[POS_CMD + 0] = MAINCMD;
@@ -1039,10 +1222,10 @@ public class NfcPcd {
 			pResponseLen[0] = 1;
 		} else {
 			//Statusは返さない
-			if((s_ResponseBuf[2] != 0x00) || (res_len[0] != (3 + s_ResponseBuf[3]))) {
+			if((s_ResponseBuf[2] != 0x00) || (res_len[0] != (3 + (s_ResponseBuf[3] & 0xff)))) {
 				return false;
 			}
-			pResponseLen[0] = s_ResponseBuf[3];
+			pResponseLen[0] = s_ResponseBuf[3] & 0xff;
 			MemCpy(pResponse, s_ResponseBuf, pResponseLen[0], 0, 3);	//LENから返す
 		}
 
@@ -1061,26 +1244,64 @@ public class NfcPcd {
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean inDataExchange(
+	public static synchronized boolean inDataExchange(
 				final byte[] pCommand, byte CommandLen,
 				byte[] pResponse, byte[] pResponseLen, boolean bCoutinue) {
+		int[] res_len = new int[1];
+		boolean ret = inDataExchange(pCommand, 0, CommandLen & 0xff,
+						pResponse, res_len, bCoutinue, null);
+		pResponseLen[0] = (byte)res_len[0];
+		return ret;
+	}
+
+	/**
+	 * InDataExchange(チェイン対応)
+	 *
+	 * データが#SIZE_DEP_DATAを超える場合は、bMoreCommandをtrueにして分割して送る。
+	 * レスポンスのステータスにMIが立っていたら、続きは空のInDataExchangeで受け取る。
+	 *
+	 * @param[in]	pCommand		送信するコマンド
+	 * @param[in]	Offset			pCommandの開始位置
+	 * @param[in]	CommandLen		送信する長さ(#SIZE_DEP_DATA以下)
+	 * @param[out]	pResponse		レスポンス(#SIZE_DEP_RESBUF以上)
+	 * @param[out]	pResponseLen	pResponseの長さ
+	 * @param[in]	bMoreCommand	コマンドの続きがある(MI)
+	 * @param[out]	pMoreResponse	レスポンスの続きがある(MI)。nullならMIはエラー扱い
+	 *
+	 * @retval		true			成功
+	 * @retval		false			失敗
+	 */
+	public static synchronized boolean inDataExchange(
+				final byte[] pCommand, int Offset, int CommandLen,
+				byte[] pResponse, int[] pResponseLen,
+				boolean bMoreCommand, boolean[] pMoreResponse) {
+		if(CommandLen > SIZE_DEP_DATA) {
+			Log.e(TAG, "inDataExchange len=" + CommandLen);
+			return false;
+		}
 		s_SendBuf[POS_CMD + 0] = MAINCMD;
 		s_SendBuf[POS_CMD + 1] = 0x40;			//InDataExchange
 		s_SendBuf[POS_CMD + 2] = 0x01;			//Tg
-		if(bCoutinue) {
+		if(bMoreCommand) {
 			s_SendBuf[POS_CMD + 2] |= 0x40;	//MI
 		}
-		MemCpy(s_SendBuf, pCommand, CommandLen, POS_CMD + 3, 0);
+		MemCpy(s_SendBuf, pCommand, CommandLen, POS_CMD + 3, Offset);
 
 		short[] res_len = new short[1];
 		boolean ret = sendCmd(null, 3 + CommandLen, s_ResponseBuf, res_len);
-		if(!ret || (res_len[0] < 3) || (s_ResponseBuf[2] != 0x00)) {
-			Log.e(TAG, "inDataExchange ret=" + ret + " / len=" + res_len[0] + " / code=" + s_ResponseBuf[2]);
+		byte status = s_ResponseBuf[2];
+		boolean more = ((status & 0x40) != 0);
+		if(!ret || (res_len[0] < 3) || ((status & 0x3f) != 0x00)
+		  || (more && (pMoreResponse == null))) {
+			Log.e(TAG, "inDataExchange ret=" + ret + " / len=" + res_len[0] + " / code=" + status);
 			return false;
 		}
 
-		pResponseLen[0] = (byte)(res_len[0] - 3);
+		pResponseLen[0] = res_len[0] - 3;
 		MemCpy(pResponse, s_ResponseBuf, pResponseLen[0], 0, 3);
+		if(pMoreResponse != null) {
+			pMoreResponse[0] = more;
+		}
 
 		return true;
 	}
@@ -1097,7 +1318,7 @@ public class NfcPcd {
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean inCommunicateThru(
+	public static synchronized boolean inCommunicateThru(
 				final byte[] pCommand, int CommandLen,
 				byte[] pResponse, byte[] pResponseLen) {
 		s_SendBuf[POS_CMD + 0] = MAINCMD;
@@ -1106,9 +1327,6 @@ public class NfcPcd {
 
 		short[] res_len = new short[1];
 		boolean ret = sendCmd(null, 2 + CommandLen, s_ResponseBuf, res_len);
-		for(int i=0; i<res_len[0]; i++) {
-			Log.d(TAG, "" + s_ResponseBuf[i]);
-		}
 		if(!ret || (res_len[0] < 3) || (s_ResponseBuf[2] != 0x00)) {
 			Log.e(TAG, "InCommunicateThru ret=" + ret);
 			return false;
@@ -1120,6 +1338,34 @@ public class NfcPcd {
 		return true;
 	}
 
+	/**
+	 * InPSL
+	 *
+	 * ISO14443-4 Targetの通信速度を変更する(PPSを送る)。
+	 *
+	 * @param[in]	BrIt			Initiator→Targetの速度(#BR_106K～#BR_847K)
+	 * @param[in]	BrTi			Target→Initiatorの速度(#BR_106K～#BR_847K)
+	 *
+	 * @retval		true			成功
+	 * @retval		false			失敗
+	 */
+	public static synchronized boolean inPsl(byte BrIt, byte BrTi) {
+		s_SendBuf[POS_CMD + 0] = MAINCMD;
+		s_SendBuf[POS_CMD + 1] = 0x4e;			//InPSL
+		s_SendBuf[POS_CMD + 2] = 0x01;			//Tg
+		s_SendBuf[POS_CMD + 3] = BrIt;
+		s_SendBuf[POS_CMD + 4] = BrTi;
+
+		short[] res_len = new short[1];
+		boolean ret = sendCmd(null, 5, s_ResponseBuf, res_len);
+		if(!ret || (res_len[0] < 3) || (s_ResponseBuf[2] != 0x00)) {
+			Log.e(TAG, "inPsl ret=" + ret + " / code=" + s_ResponseBuf[2]);
+			return false;
+		}
+
+		return true;
+	}
+
 	////////////////////////////////////////////////////
 
 	/**
@@ -1133,13 +1379,10 @@ public class NfcPcd {
 	 * @retval		true			成功
 	 * @retval		false			失敗
 	 */
-	public static boolean inListPassiveTarget(
+	public static synchronized boolean inListPassiveTarget(
 				final byte[] pInitData, byte InitLen,
 				byte[] pTgData, byte[] pTgLen)
 	{
-		//初期化
-		mNfcId.reset();
-
 		short[] res_len = new short[1];
 		s_SendBuf[POS_CMD + 0] = MAINCMD;
 		s_SendBuf[POS_CMD + 1] = 0x4a;				//InListPassiveTarget
@@ -1160,18 +1403,15 @@ public class NfcPcd {
 	/**
 	 * [NFC-A]Polling
 	 *
-	 * @retval		true			成功
-	 * @retval		false			失敗
+	 * @return		検出レコード(失敗時はnull)
 	 */
-	public static boolean pollingA() {
-		mNfcId.reset();
-
+	public static synchronized NfcId pollingA() {
 		final byte[] INLISTPASSIVETARGET = new byte[]{ 0x00 };
 		final byte INLISTPASSIVETARGET_RES = 0x01;
 
 		boolean ret;
 		//byte[] cmd = new byte[50];			//TODO:最大値を調べたまえ
-		byte[] res = new byte[50];				//TODO:最大値を調べたまえ
+		byte[] res = new byte[RW_RESPONSE_BUFLEN];
 		byte[] res_len = new byte[1];
 
 		ret = inListPassiveTarget(
@@ -1180,19 +1420,20 @@ public class NfcPcd {
 		if (!ret
 		  || (res[2] != INLISTPASSIVETARGET_RES)) {
 			//Log.e(TAG, "pollingA fail: ret=" + ret);
-			return false;
+			return null;
 		}
+		int tg_len = res_len[0] & 0xff;
 
 		//mNfcId.TargetNo = res[3];
 		//Log.d(TAG, "TargetNo : " + mNfcId.TargetNo);
 
-		mNfcId.Manufacture = new byte[3];
-		mNfcId.Manufacture[NfcId.POS_SENSRES0] = res[4];
-		mNfcId.Manufacture[NfcId.POS_SENSRES1] = res[5];
+		byte[] manufacture = new byte[3];
+		manufacture[NfcId.POS_SENSRES0] = res[4];
+		manufacture[NfcId.POS_SENSRES1] = res[5];
 
-		mNfcId.Manufacture[NfcId.POS_SELRES] = res[6];
+		manufacture[NfcId.POS_SELRES] = res[6];
 		String sel_res;
-		switch(mNfcId.Manufacture[NfcId.POS_SELRES]) {
+		switch(manufacture[NfcId.POS_SELRES]) {
 		case SELRES_MIFARE_UL:			sel_res = "MIFARE Ultralight";		break;
 		case SELRES_MIFARE_1K:			sel_res = "MIFARE 1K";				break;
 		case SELRES_MIFARE_MINI:		sel_res = "MIFARE MINI";			break;
@@ -1201,49 +1442,75 @@ public class NfcPcd {
 		case SELRES_JCOP30:				sel_res = "JCOP30";					break;
 		case SELRES_GEMPLUS_MPCOS:		sel_res = "Gemplus MPCOS";			break;
 		default:
-			mNfcId.Manufacture[NfcId.POS_SELRES] = SELRES_UNKNOWN;
+			manufacture[NfcId.POS_SELRES] = SELRES_UNKNOWN;
 			sel_res = "???";
 		}
 		Log.d(TAG, "SEL_RES:" + sel_res);
-		mNfcId.Label = sel_res;
-
-		mNfcId.Length = res[7];
-		MemCpy(mNfcId.Id, res, res[7], 0, 8);
-		mNfcId.Type = NfcIdType.NFCID1;
+		byte sel_res_raw = res[6];		//SAK as received
+
+		byte[] id = new byte[res[7]];
+		MemCpy(id, res, res[7], 0, 8);
+
+		// ISO14443-4対応なら、PN533がRATSを投げてATSが続く
+		byte[] ats = null;
+		int ats_pos = 8 + res[7];
+		if(((sel_res_raw & 0x20) != 0) && (ats_pos < tg_len)) {
+			int ats_len = res[ats_pos] & 0xff;		//TL
+			if((ats_len > 0) && (ats_pos + ats_len <= tg_len)) {
+				ats = new byte[ats_len];
+				MemCpy(ats, res, ats_len, 0, ats_pos);
+			}
+		}
 
-		return true;
+		return new NfcId(NfcIdType.NFCID1, id, sel_res, manufacture, sel_res_raw, ats, null);
 	}
 
 	/**
 	 * [NFC-B]Polling
 	 *
-	 * @retval		true			成功
-	 * @retval		false			失敗
+	 * ATTRIBはPN533が送る。
+	 * レスポンスは [NbTg][Tg][ATQB(12)][ATTRIB_RES長][ATTRIB_RES]、
+	 * ATQBは [0x50][PUPI(4)][Application Data(4)][Protocol Info(3)]。
+	 *
+	 * @return		検出レコード(失敗時はnull)
 	 */
-	public static boolean pollingB() {
-		mNfcId.reset();
-
+	public static synchronized NfcId pollingB() {
 		final byte[] INLISTPASSIVETARGET = new byte[]{ 0x03, 0x00 };
 		final byte INLISTPASSIVETARGET_RES = 0x01;
+		final int POS_ATQB = 4;
+		final int LEN_ATQB = 12;
+		final int LEN_PUPI = 4;
 
 		boolean ret;
-		byte[] res = new byte[50];			//TODO:最大値を調べたまえ
+		byte[] res = new byte[RW_RESPONSE_BUFLEN];
 		byte[] res_len = new byte[1];
 
 		ret = inListPassiveTarget(
 						INLISTPASSIVETARGET, (byte)INLISTPASSIVETARGET.length,
 						res, res_len);
+		int tg_len = res_len[0] & 0xff;
 		if (!ret
-		  || (res[1] != INLISTPASSIVETARGET_RES)) {
+		  || (res[2] != INLISTPASSIVETARGET_RES)
+		  || (tg_len < POS_ATQB + LEN_ATQB + 1)
+		  || (res[POS_ATQB] != 0x50)) {
 			//Log.e(TAG, "pollingB fail");
-			return false;
+			return null;
 		}
 
-		mNfcId.Length = 12;
-		MemCpy(mNfcId.Id, res, mNfcId.Length, 0, 4);
-		mNfcId.Type = NfcIdType.NFCID0;
+		byte[] id = new byte[LEN_PUPI];
+		MemCpy(id, res, LEN_PUPI, 0, POS_ATQB + 1);
+		byte[] manufacture = new byte[NfcId.LEN_APPDATA + NfcId.LEN_PROTINFO];
+		MemCpy(manufacture, res, manufacture.length, 0, POS_ATQB + 1 + LEN_PUPI);
 
-		return true;
+		int attrib_pos = POS_ATQB + LEN_ATQB;
+		int attrib_len = res[attrib_pos] & 0xff;
+		if (attrib_pos + 1 + attrib_len > tg_len) {
+			attrib_len = tg_len - attrib_pos - 1;
+		}
+		byte[] attrib_res = new byte[attrib_len];
+		MemCpy(attrib_res, res, attrib_len, 0, attrib_pos + 1);
+
+		return new NfcId(NfcIdType.NFCID0, id, "ISO14443-3B", manufacture, (byte)0, null, attrib_res);
 	}
 
 	/**
@@ -1251,14 +1518,11 @@ public class NfcPcd {
 	 *
 	 * @param[in]		systemCode		システムコード
 	 *
-	 * @retval		true			成功
-	 * @retval		false			失敗
+	 * @return		検出レコード(失敗時はnull)
 	 *
 	 * @attention	- 取得失敗は、主にカードが認識できない場合である。
 	 */
-	public static synchronized boolean pollingF(short systemCode, int reqCode) {
-		mNfcId.reset();
-
+	public static synchronized NfcId pollingF(short systemCode, int reqCode) {
 		//InListPassiveTarget
 		byte[] cmd = new byte[]{
 			0x02,				// 0x01:212Kbps  0x02:424Kbps
@@ -1273,7 +1537,7 @@ public class NfcPcd {
 
 		boolean ret;
 		//byte[] cmd = new byte[50];			//TODO:最大値を調べたまえ
-		byte[] res = new byte[50];			//TODO:最大値を調べたまえ
+		byte[] res = new byte[RW_RESPONSE_BUFLEN];
 		byte[] res_len = new byte[1];
 
 		// 424Kbps
@@ -1294,37 +1558,36 @@ public class NfcPcd {
 			if (!ret
 							  || (res[3] != 0x01) || (res[4] < 0x12) || (res[5] != 0x01)) {
 				//Log.e(TAG, "pollingF fail(212Kbps): ret=" + ret + "/len=" + res_len);
-				return false;
+				return null;
 			}
 		}
-		MemCpy(mNfcId.Id, res, SIZE_NFCID2, 0, 6);
-		mNfcId.Type = NfcIdType.NFCID2;
-		mNfcId.Length = SIZE_NFCID2;
-		mNfcId.Label = "FeliCa";
+		byte[] id = new byte[SIZE_NFCID2];
+		MemCpy(id, res, SIZE_NFCID2, 0, 6);
+		byte[] manufacture;
 		if(reqCode == 0x01) {
-			mNfcId.Manufacture = new byte[10];
-			mNfcId.Manufacture[NfcId.POS_SC0] = res[22];
-			mNfcId.Manufacture[NfcId.POS_SC1] = res[23];
+			manufacture = new byte[10];
+			manufacture[NfcId.POS_SC0] = res[22];
+			manufacture[NfcId.POS_SC1] = res[23];
 		} else {
-			mNfcId.Manufacture = new byte[8];
+			manufacture = new byte[8];
 		}
-		MemCpy(mNfcId.Manufacture, res, 8, NfcId.POS_PMM, 6+8);
+		MemCpy(manufacture, res, 8, NfcId.POS_PMM, 6+8);
 
 //		Log.d(TAG, "---------");
-//		for(int i=0; i<mNfcId.Manufacture.length; i++) {
-//			Log.d(TAG, String.format("%02x", mNfcId.Manufacture[i]));
+//		for(int i=0; i<manufacture.length; i++) {
+//			Log.d(TAG, String.format("%02x", manufacture[i]));
 //		}
 //		Log.d(TAG, "---------");
 
 
-		return true;
+		return new NfcId(NfcIdType.NFCID2, id, "FeliCa", manufacture, (byte)0, null, null);
 	}
 
-	public static boolean pollingF(int systemCode) {
+	public static synchronized NfcId pollingF(int systemCode) {
 		return pollingF((short)systemCode, 0x01);
 	}
 
-	public static boolean pollingF() {
+	public static synchronized NfcId pollingF() {
 		return pollingF(0xffff);
 	}
 
@@ -1339,7 +1602,7 @@ public class NfcPcd {
 	 * @param[in]	pGt			Gt(Initiator)
 	 * @param[in]	GtLen		Gtサイズ
 	 */
-	private static boolean _inJump(
+	private static synchronized boolean _inJump(
 			byte Cmd, byte Ap, byte Br, boolean bNfcId3,
 			final byte[] pGt, byte GtLen) {
 		//LOGD("%s", __PRETTY_FUNCTION__);
@@ -1402,7 +1665,7 @@ public class NfcPcd {
 	 * @param[in]	pGt			Gt(Initiator)
 	 * @param[in]	GtLen		Gtサイズ
 	 */
-	public static boolean inJumpForDep(
+	public static synchronized boolean inJumpForDep(
 			byte Ap, byte Br, boolean bNfcId3,
 			final byte[] pGt, byte GtLen) {
 		return _inJump((byte)0x56, Ap, Br, bNfcId3, pGt, GtLen);
@@ -1418,7 +1681,7 @@ public class NfcPcd {
 	 * @param[in]	pGt			Gt(Initiator)
 	 * @param[in]	GtLen		Gtサイズ
 	 */
-	public static boolean inJumpForPsl(
+	public static synchronized boolean inJumpForPsl(
 			byte Ap, byte Br, boolean bNfcId3,
 			final byte[] pGt, byte GtLen) {
 		return _inJump((byte)0x46, Ap, Br, bNfcId3, pGt, GtLen);
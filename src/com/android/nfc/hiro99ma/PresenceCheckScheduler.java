@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.hiro99ma;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One delay queue, served by a single thread, that runs the presence checks
+ * of every live tag endpoint.
+ *
+ * <p>Each endpoint owns a {@link Entry}. Pausing cancels the pending check,
+ * and resuming or changing the timeout re-arms it one full interval later.
+ * None of these calls blocks or wakes a thread per tag.
+ *
+ * <p>The check thread must never wait on a tag's lock, or one busy tag
+ * would delay the checks of all the others. A check therefore only reads
+ * lock-free state, and a lost tag is torn down on a separate thread, since
+ * the teardown takes the tag lock.
+ */
+final class PresenceCheckScheduler {
+	private static final String THREAD_NAME = "NfcPresenceCheck";
+
+	private static ScheduledThreadPoolExecutor sExecutor;
+	private static Executor sLostExecutor;
+
+	private static synchronized Executor lostExecutor() {
+		if (sLostExecutor == null) {
+			sLostExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "NfcTagLost");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return sLostExecutor;
+	}
+
+	private static synchronized ScheduledThreadPoolExecutor executor() {
+		if (sExecutor == null) {
+			sExecutor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, THREAD_NAME);
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			// pause/resume cancel and re-arm around every exchange; without
+			// this the cancelled checks would pile up in the queue
+			sExecutor.setRemoveOnCancelPolicy(true);
+		}
+		return sExecutor;
+	}
+
+	/**
+	 * Presence check state of one tag endpoint.
+	 */
+	static final class Entry implements Runnable {
+		interface Callback {
+			/**
+			 * Returns false once the tag has left the field. Called on the
+			 * shared check thread; must not block.
+			 */
+			boolean checkPresence();
+
+			/** Called once, off the check thread, after the tag was lost. */
+			void onTagLost();
+		}
+
+		private final Callback mCallback;
+
+		// all fields below are guarded by this
+		private int mTimeout;
+		private boolean mPaused = false;
+		private boolean mStopped = false;
+		private ScheduledFuture<?> mFuture;
+
+		Entry(Callback callback, int timeout) {
+			mCallback = callback;
+			mTimeout = timeout;
+		}
+
+		synchronized void start() {
+			arm();
+		}
+
+		synchronized void pause() {
+			mPaused = true;
+			disarm();
+		}
+
+		synchronized void doResume() {
+			mPaused = false;
+			// We don't want to resume presence checking immediately,
+			// but go through at least one more wait period.
+			arm();
+		}
+
+		synchronized void end() {
+			mStopped = true;
+			disarm();
+		}
+
+		synchronized void setTimeout(int timeout) {
+			mTimeout = timeout;
+			// Do it only after we have waited "timeout" ms again
+			arm();
+		}
+
+		private void arm() {
+			disarm();
+			if (!mPaused && !mStopped) {
+				mFuture = executor().scheduleWithFixedDelay(this, mTimeout, mTimeout,
+						TimeUnit.MILLISECONDS);
+			}
+		}
+
+		private void disarm() {
+			if (mFuture != null) {
+				mFuture.cancel(false);
+				mFuture = null;
+			}
+		}
+
+		@Override
+		public void run() {
+			synchronized (this) {
+				if (mPaused || mStopped) {
+					return;
+				}
+			}
+			// Must not hold our own lock here: tag methods call
+			// pause()/doResume() while holding the tag lock.
+			if (mCallback.checkPresence()) {
+				return;
+			}
+			synchronized (this) {
+				if (mStopped) {
+					return;
+				}
+				mStopped = true;
+				disarm();
+			}
+			lostExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					mCallback.onTagLost();
+				}
+			});
+		}
+	}
+}
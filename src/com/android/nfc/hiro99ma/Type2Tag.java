@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2010 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.nfc.hiro99ma;
+
+import android.nfc.tech.TagTechnology;
+import android.util.Log;
+
+/**
+ * NFC Forum Type 2 tag (MIFARE Ultralight / NTAG) memory access and NDEF
+ * discovery.
+ *
+ * <p>Pages are read with READ, which returns 4 pages per command. Once the
+ * tag is known to support it, FAST_READ fetches a whole page range in one
+ * exchange. One instance lives for one tag session. All methods are called
+ * with the NfcPcd device lock held.
+ */
+final class Type2Tag {
+	private static final String TAG = "Type2Tag";
+
+	/// commands
+	private static final byte CMD_READ = 0x30;
+	private static final byte CMD_FAST_READ = 0x3a;
+	private static final byte CMD_GET_VERSION = 0x60;
+
+	public static final int PAGE_SIZE = 4;
+	private static final int READ_PAGES = 4;			///< READ returns 16 bytes
+	private static final int FAST_READ_MAX_PAGES = 60;	///< 240 bytes fits one PCD frame
+
+	private static final int PAGE_CC = 3;
+	private static final int PAGE_DATA = 4;
+
+	/// Capability Container
+	private static final byte CC_MAGIC = (byte)0xe1;
+	private static final int CC_SIZE = 2;
+	private static final int CC_ACCESS = 3;
+
+	/// TLV
+	private static final byte TLV_NULL = 0x00;
+	private static final byte TLV_NDEF = 0x03;
+	private static final byte TLV_TERMINATOR = (byte)0xfe;
+
+	/// GET_VERSION : vendor NXP, product NTAG / Ultralight EV1
+	private static final int VERSION_LEN = 8;
+	private static final byte VENDOR_NXP = 0x04;
+	private static final byte PRODUCT_NTAG = 0x04;
+	private static final byte PRODUCT_ULTRALIGHT = 0x03;
+
+	private final NativeNfcManager mManager;
+	private final NativeNfcTag mTag;
+	private final byte[] mRes = new byte[NfcPcd.SIZE_RESBUF];
+	private final byte[] mResLen = new byte[1];
+
+	// FAST_READ support : null until probed
+	private Boolean mFastRead;
+
+	// data area (from page 4) and how much of it has been read
+	private byte[] mData;
+	private int mFetched;
+
+	private boolean mReadOnly;
+	private int mMaxNdefLength = -1;
+
+	Type2Tag(NativeNfcManager manager, NativeNfcTag tag) {
+		mManager = manager;
+		mTag = tag;
+	}
+
+	/**
+	 * Reads the NDEF message.
+	 *
+	 * @return		NDEF message bytes, or null if the tag has no NDEF TLV
+	 */
+	public byte[] readNdef() {
+		// always start from the tag; only the FAST_READ probe is kept
+		mData = null;
+		mMaxNdefLength = -1;
+		// the PCD default after init is no timeout at all
+		if (!NfcPcd.setCommunicationTimeout(mManager.getTimeout(TagTechnology.NFC_A))) {
+			return null;
+		}
+		if (!readCapabilityContainer()) {
+			return null;
+		}
+
+		int pos = 0;
+		while (pos < mData.length) {
+			if (!fetch(pos + 1)) {
+				return null;
+			}
+			byte type = mData[pos];
+			if (type == TLV_NULL) {
+				pos++;
+				continue;
+			}
+			if (type == TLV_TERMINATOR) {
+				break;
+			}
+
+			// length : 1 byte, or 0xff + 2 bytes
+			if (!fetch(Math.min(pos + 4, mData.length))) {
+				return null;
+			}
+			if (pos + 1 >= mData.length) {
+				break;
+			}
+			int len = mData[pos + 1] & 0xff;
+			int hdr = 2;
+			if (len == 0xff) {
+				if (pos + 3 >= mData.length) {
+					break;
+				}
+				len = ((mData[pos + 2] & 0xff) << 8) | (mData[pos + 3] & 0xff);
+				hdr = 4;
+			}
+			if (pos + hdr + len > mData.length) {
+				Log.e(TAG, "TLV overruns data area");
+				return null;
+			}
+
+			if (type == TLV_NDEF) {
+				mMaxNdefLength = mData.length - pos - hdr;
+				if (!fetch(pos + hdr + len)) {
+					return null;
+				}
+				byte[] ndef = new byte[len];
+				System.arraycopy(mData, pos + hdr, ndef, 0, len);
+				return ndef;
+			}
+			pos += hdr + len;
+		}
+		return null;
+	}
+
+	/** Usable NDEF size, valid after {@link #readNdef()} found an NDEF TLV. */
+	public int getMaxNdefLength() {
+		return mMaxNdefLength;
+	}
+
+	public boolean isReadOnly() {
+		return mReadOnly;
+	}
+
+	/**
+	 * Reads pages 0..3 and sets up the data area from the CC.
+	 */
+	private boolean readCapabilityContainer() {
+		if (!read(0)) {
+			return false;
+		}
+		int cc = PAGE_CC * PAGE_SIZE;
+		if (mRes[cc] != CC_MAGIC) {
+			Log.d(TAG, "not NDEF formatted");
+			return false;
+		}
+		mData = new byte[(mRes[cc + CC_SIZE] & 0xff) * 8];
+		mReadOnly = ((mRes[cc + CC_ACCESS] & 0x0f) != 0x00);
+		mFetched = 0;
+		return true;
+	}
+
+	/**
+	 * Makes sure the first end bytes of the data area have been read,
+	 * using as few exchanges as possible.
+	 */
+	private boolean fetch(int end) {
+		if (end > mData.length) {
+			end = mData.length;
+		}
+		while (mFetched < end) {
+			int page = PAGE_DATA + mFetched / PAGE_SIZE;
+			int pages = (end - mFetched + PAGE_SIZE - 1) / PAGE_SIZE;
+			int len;
+			boolean fast = false;
+			if (pages > READ_PAGES) {
+				if ((mFastRead == null) && !probeFastRead()) {
+					return false;
+				}
+				fast = mFastRead.booleanValue();
+			}
+			if (fast) {
+				pages = Math.min(pages, FAST_READ_MAX_PAGES);
+				if (!fastRead(page, page + pages - 1)) {
+					return false;
+				}
+				len = pages * PAGE_SIZE;
+			} else {
+				if (!read(page)) {
+					return false;
+				}
+				len = READ_PAGES * PAGE_SIZE;
+			}
+			len = Math.min(len, mData.length - mFetched);
+			System.arraycopy(mRes, 0, mData, mFetched, len);
+			mFetched += len;
+		}
+		return true;
+	}
+
+	/**
+	 * Sets mFastRead. GET_VERSION only answers on NTAG / Ultralight EV1.
+	 * Other tags NAK and drop to IDLE, so they are re-activated before
+	 * falling back to READ.
+	 *
+	 * @return false if the tag could not be re-activated
+	 */
+	private boolean probeFastRead() {
+		final byte[] cmd = new byte[] { CMD_GET_VERSION };
+		boolean ret = NfcPcd.inCommunicateThru(cmd, cmd.length, mRes, mResLen);
+		if (ret && ((mResLen[0] & 0xff) >= VERSION_LEN) && (mRes[1] == VENDOR_NXP)
+		  && ((mRes[2] == PRODUCT_NTAG) || (mRes[2] == PRODUCT_ULTRALIGHT))) {
+			mFastRead = Boolean.TRUE;
+		} else {
+			mFastRead = Boolean.FALSE;
+			if (!mTag.reactivateA()) {
+				return false;
+			}
+		}
+		Log.d(TAG, "FAST_READ : " + mFastRead);
+		return true;
+	}
+
+	/** READ : 4 pages from page into mRes */
+	private boolean read(int page) {
+		final byte[] cmd = new byte[] { CMD_READ, (byte)page };
+		boolean ret = NfcPcd.inDataExchange(cmd, (byte)cmd.length, mRes, mResLen, false);
+		return ret && ((mResLen[0] & 0xff) >= READ_PAGES * PAGE_SIZE);
+	}
+
+	/** FAST_READ : pages start..end into mRes */
+	private boolean fastRead(int start, int end) {
+		final byte[] cmd = new byte[] { CMD_FAST_READ, (byte)start, (byte)end };
+		boolean ret = NfcPcd.inCommunicateThru(cmd, cmd.length, mRes, mResLen);
+		return ret && ((mResLen[0] & 0xff) >= (end - start + 1) * PAGE_SIZE);
+	}
+}